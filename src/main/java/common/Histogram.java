@@ -0,0 +1,93 @@
+package common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * A latency histogram that is cheap to record into from any thread. Durations are
+ * counted in buckets of powers of two microseconds, so percentiles are approximate
+ * (within a factor of two) but recording is only a few additions without any locking.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class Histogram {
+  private static final int BUCKETS = 40; // Up to 2^39 microseconds, way more than enough
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Constructor */
+  public Histogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Record a duration.
+   * @param nanos Duration in nanoseconds
+   */
+  public void record(long nanos) {
+    var micros = Math.max(0, nanos / 1000);
+    var bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets[bucket].increment();
+    count.increment();
+    total.add(micros);
+    max.accumulateAndGet(micros, Math::max);
+  }
+
+  /**
+   * Get amount of recorded durations.
+   * @return count
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Get a summary of the recorded durations, in microseconds.
+   * @return count, mean, percentiles (upper bound of their bucket) and max
+   */
+  public Map<String, Object> snapshot() {
+    var counts = new long[BUCKETS];
+    var sum = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      sum += counts[i];
+    }
+
+    var snapshot = new LinkedHashMap<String, Object>();
+    snapshot.put("count", sum);
+    snapshot.put("meanMicros", sum == 0 ? 0 : total.sum() / sum);
+    snapshot.put("p50Micros", percentile(counts, sum, 0.50));
+    snapshot.put("p90Micros", percentile(counts, sum, 0.90));
+    snapshot.put("p99Micros", percentile(counts, sum, 0.99));
+    snapshot.put("maxMicros", max.get());
+    return snapshot;
+  }
+
+  /**
+   * Get upper bound of the bucket containing a percentile.
+   * @param counts Count of each bucket
+   * @param sum Total count
+   * @param percentile Percentile (0 to 1)
+   * @return microseconds
+   */
+  private static long percentile(long[] counts, long sum, double percentile) {
+    var rank = (long)Math.ceil(sum * percentile);
+    var seen = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return i == 0 ? 0 : 1L << i;
+      }
+    }
+    return 0;
+  }
+}
@@ -6,7 +6,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
@@ -21,6 +22,11 @@ import com.fasterxml.jackson.databind.SerializationFeature;
  * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
  */
 public class Json {
+  // Mappers and writers are thread safe once configured, so share them instead of one per call
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final ObjectWriter PRETTY_WRITER = MAPPER.writerWithDefaultPrettyPrinter();
+  private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
   /** Private constructor */
   private Json() {
     throw new InstantiationError("Forbidden instantiation");
@@ -36,8 +42,7 @@ public class Json {
    * @return object of generic type if successfully parsed (mapped)
    */
   public static <T> T parse(byte[] data, Class<T> clazz) throws IOException {
-    ObjectMapper objectMapper = new ObjectMapper();
-    return objectMapper.readValue(data, clazz);
+    return MAPPER.readValue(data, clazz);
   }
 
   /**
@@ -60,14 +65,30 @@ public class Json {
    * @return a JSON (formatted string) with properties from specified object
    */
   public static String stringify(Object object) throws IOException {
-    ObjectMapper objectMapper = new ObjectMapper();
-    objectMapper.configure(SerializationFeature.INDENT_OUTPUT, true);
-
     StringWriter sw = new StringWriter();
-    objectMapper.writeValue(sw, object);
+    PRETTY_WRITER.writeValue(sw, object);
     return sw.toString();
   }
 
+  /**
+   * Object to compact JSON encoded as UTF-8, used for data sent over the wire.
+   * @param object Object to be transformed into JSON
+   * @return a UTF-8 encoded JSON with properties from specified object
+   */
+  public static byte[] encode(Object object) throws IOException {
+    return MAPPER.writeValueAsBytes(object);
+  }
+
+  /**
+   * Object to Smile (binary JSON), used for data sent over the wire to clients that
+   * has opted in, it is smaller and cheaper to parse than JSON.
+   * @param object Object to be transformed into Smile
+   * @return a Smile encoded document with properties from specified object
+   */
+  public static byte[] encodeSmile(Object object) throws IOException {
+    return SMILE_MAPPER.writeValueAsBytes(object);
+  }
+
   /**
    * Convert an object to a {@link java.util.Map} with its fields (properties).
    * @param obj Object to convert to a Map
@@ -75,7 +96,6 @@ public class Json {
    */
   @SuppressWarnings("unchecked")
   public static Map<String, Object> objectToMap(Object obj) {
-    ObjectMapper objectMapper = new ObjectMapper();
-    return objectMapper.convertValue(obj, Map.class);
+    return MAPPER.convertValue(obj, Map.class);
  }
 }
@@ -0,0 +1,67 @@
+package common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Registry of named metrics of the running service; counters, that are cheap to
+ * increment from any thread, gauges, that are read when a snapshot is taken, and
+ * latency histograms (see {@link Histogram}).
+ * Names are dotted, e.g. "ws.slow.dropped".
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class Metrics {
+  private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Supplier<Object>> gauges = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  /** Private constructor */
+  private Metrics() {
+    throw new InstantiationError("Forbidden instantiation");
+  }
+
+  /**
+   * Get a counter, created the first time it is used.
+   * @param name Name of the counter
+   * @return counter
+   */
+  public static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  /**
+   * Get a histogram, created the first time it is used.
+   * @param name Name of the histogram
+   * @return histogram
+   */
+  public static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, k -> new Histogram());
+  }
+
+  /**
+   * Register a gauge, replacing any gauge with the same name.
+   * @param name Name of the gauge
+   * @param gauge Supplier of the current value
+   */
+  public static void gauge(String name, Supplier<Object> gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Get the current value of all metrics.
+   * @return metrics by name, sorted by name
+   */
+  public static Map<String, Object> snapshot() {
+    var snapshot = new TreeMap<String, Object>();
+    counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+    histograms.forEach((name, histogram) -> snapshot.put(name, histogram.snapshot()));
+    return snapshot;
+  }
+}
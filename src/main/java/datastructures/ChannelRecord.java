@@ -2,6 +2,8 @@ package datastructures;
 
 import java.math.BigDecimal;
 
+import services.RowMapper;
+
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
  *
@@ -17,19 +19,27 @@ public class ChannelRecord {
   public String creatorId;
   public Long subscriptions;
 
+  /** Maps rows of the table, joined with the amount of subscriptions */
+  public static final RowMapper<ChannelRecord, RuntimeException> MAPPER = rs -> {
+    var id = rs.findColumn("id");
+    var name = rs.findColumn("name");
+    var description = rs.findColumn("description");
+    var created = rs.findColumn("created");
+    var creatorId = rs.findColumn("creator_id");
+    var subscriptions = rs.findColumn("subscriptions");
+
+    return row -> {
+      var channel = new ChannelRecord();
+      channel.id = row.getString(id);
+      channel.name = row.getString(name);
+      channel.description = row.getString(description);
+      channel.created = row.getBigDecimal(created);
+      channel.creatorId = row.getString(creatorId);
+      channel.subscriptions = row.getLong(subscriptions);
+      return channel;
+    };
+  };
+
   /** Empty constructor; for populating public fields from outside */
   public ChannelRecord() {}
-
-  /**
-   * Constructor.
-   * @param record Arbitrary database record
-   */
-  public ChannelRecord(Record record) {
-    this.id = record.getString("id");
-    this.name = record.getString("name");
-    this.description = record.getString("description");
-    this.created = record.getBigDecimal("created");
-    this.creatorId = record.getString("creator_id");
-    this.subscriptions = record.getLong("subscriptions");
-  }
 }
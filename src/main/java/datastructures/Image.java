@@ -8,6 +8,9 @@ import java.io.Serializable;
  * Class contains data for a text message with an attached image,
  * the text is not mandatory and may be empty.
  *
+ * An image is pending (without URL) until it has been stored, the message
+ * is then updated with the URL.
+ *
  * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
  */
 public class Image implements Serializable {
@@ -15,6 +18,7 @@ public class Image implements Serializable {
 
   public String text;
   public String imageUrl;
+  public boolean pending; // Image is still being stored
 
   /** Empty constructor; for populating public fields from outside */
   public Image() {}
@@ -28,4 +32,15 @@ public class Image implements Serializable {
     this.text = text;
     this.imageUrl = imageUrl;
   }
+
+  /**
+   * Constructor.
+   * @param text Text message (optional, may be null or empty)
+   * @param imageUrl Image URL (null while pending)
+   * @param pending If image is still being stored
+   */
+  public Image(String text, String imageUrl, boolean pending) {
+    this(text, imageUrl);
+    this.pending = pending;
+  }
 };
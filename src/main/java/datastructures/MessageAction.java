@@ -14,8 +14,8 @@ import java.util.Map;
 public class MessageAction {
   public String type;
   public String channelId;
-  // Type is of java.util.LinkedHashMap
-  public Map<String, String> data;
+  // Type is of java.util.LinkedHashMap, an image is of datastructures.ImageData
+  public Map<String, Object> data;
 
   /** Constructor */
   public MessageAction() {
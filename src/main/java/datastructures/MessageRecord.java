@@ -5,6 +5,8 @@ import static services.DbUtils.deserialize;
 import java.io.IOException;
 import java.math.BigDecimal;
 
+import services.RowMapper;
+
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
  *
@@ -21,20 +23,28 @@ public class MessageRecord {
   public Object data;
   public BigDecimal created;
 
+  /** Maps rows of the table, deserializing the data of each message */
+  public static final RowMapper<MessageRecord, IOException> MAPPER = rs -> {
+    var index = rs.findColumn("idx");
+    var id = rs.findColumn("id");
+    var channelId = rs.findColumn("channel_id");
+    var userId = rs.findColumn("user_id");
+    var created = rs.findColumn("created");
+    var data = rs.findColumn("data");
+
+    return row -> {
+      var message = new MessageRecord();
+      message.index = row.getInt(index);
+      message.id = row.getString(id);
+      message.channelId = row.getString(channelId);
+      message.userId = row.getString(userId);
+      message.created = row.getBigDecimal(created);
+      message.data = deserialize(row.getBytes(data), Object.class);
+      message.type = message.data instanceof Image ? "image" : "text";
+      return message;
+    };
+  };
+
   /** Empty constructor; for populating public fields from outside */
   public MessageRecord() {}
-
-  /**
-   * Constructor.
-   * @param record Arbitrary database record
-   */
-  public MessageRecord(Record record) throws IOException, ReflectiveOperationException {
-    this.index = record.getInteger("idx");
-    this.id = record.getString("id");
-    this.channelId = record.getString("channel_id");
-    this.userId = record.getString("user_id");
-    this.created = record.getBigDecimal("created");
-    this.data = deserialize(record.getByteArray("data"), Object.class);
-    this.type = data instanceof Image ? "image" : "text";
-  }
 }
@@ -3,6 +3,7 @@ package datastructures;
 import java.security.GeneralSecurityException;
 
 import common.Crypto;
+import services.RowMapper;
 
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
@@ -19,20 +20,28 @@ public class UserRecord {
   public String password;
   public String profileImageUrl;
 
-  /**
-   * Constructor.
-   * @param record Arbitrary database record
-   */
-  public UserRecord(Record record) throws GeneralSecurityException {
+  /** Maps rows of the table, decrypting the password of each user */
+  public static final RowMapper<UserRecord, GeneralSecurityException> MAPPER = rs -> {
+    var id = rs.findColumn("id");
+    var email = rs.findColumn("email");
+    var password = rs.findColumn("password");
+    var forename = rs.findColumn("forename");
+    var surname = rs.findColumn("surname");
+    var profileImageUrl = rs.findColumn("profile_image_url");
     var secretKeyId = System.getProperty("PASSWORD_SECRET_KEY_ID");
-    var encryptedPassword = record.getString("password");
-    var decryptedPassword = Crypto.decrypt(secretKeyId, encryptedPassword);
 
-    this.id = record.getString("id");
-    this.email = record.getString("email");
-    this.password = decryptedPassword;
-    this.forename = record.getString("forename");
-    this.surname = record.getString("surname");
-    this.profileImageUrl = record.getString("profile_image_url");
-  }
+    return row -> {
+      var user = new UserRecord();
+      user.id = row.getString(id);
+      user.email = row.getString(email);
+      user.password = Crypto.decrypt(secretKeyId, row.getString(password));
+      user.forename = row.getString(forename);
+      user.surname = row.getString(surname);
+      user.profileImageUrl = row.getString(profileImageUrl);
+      return user;
+    };
+  };
+
+  /** Empty constructor; for populating public fields from outside */
+  public UserRecord() {}
 }
@@ -1,5 +1,8 @@
 package datastructures;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
  *
@@ -11,6 +14,15 @@ public class WsActionResponse {
   public String type; // Type of action
   public Object data; // Data related to the type of action
 
+  @JsonInclude(Include.NON_NULL)
+  public String channelId; // Channel of a sequenced action
+
+  @JsonInclude(Include.NON_NULL)
+  public Long seq; // Sequence number within the channel
+
+  @JsonInclude(Include.NON_NULL)
+  public String epoch; // Epoch the sequence number belongs to
+
   /** Constructor */
   public WsActionResponse() {
     // Will be populated from outside
@@ -0,0 +1,27 @@
+package datastructures;
+
+import java.util.List;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Class contains data for an event published between nodes, a response to be broadcasted
+ * to the connections of each node and any changes of subscriptions that goes with it.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class WsBusEvent {
+  public String type; // Type of event
+  public String channelId; // Channel concerned
+  public List<String> channelIds; // Channels concerned, if several
+  public String userId; // User concerned
+  public WsActionResponse response; // Response to be broadcasted
+  public String reference; // Data of the response left out, "message" or "user" (loaded by each node)
+  public String messageId; // Message of the response, if left out
+  public String node; // Node that published the event
+
+  /** Constructor */
+  public WsBusEvent() {
+    // Will be populated from outside
+  }
+}
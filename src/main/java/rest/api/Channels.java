@@ -76,8 +76,10 @@ public class Channels {
       // Set the creating user as subscriber on channel
       ChannelDb.subscribeChannel(userId, channel.id);
     
-      // Update the websocket service with new channel and subscription on it
-      WsConfiguration.SERVER.subscribeNewChannel(userId, channel.id);
+      // Update the websocket service with new channel and subscription on it (for all
+      // open connections of the user), none will be subscribed if the user is not connected
+      var subscribed = WsConfiguration.SERVER.subscribeNewChannel(userId, channel.id);
+      log.info(String.format("Subscribed %s connections of user %s on channel %s", subscribed, userId, channel.id));
 
       return Response.status(200).entity(channel).build();
     } catch (ConstraintException e) {
@@ -0,0 +1,32 @@
+package rest.api;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import common.Metrics;
+import rest.annotation.Authorization;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * REST API exposing the metrics (counters and gauges) of the running service,
+ * see {@link Metrics}.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+@Path("/metrics")
+public class Monitoring {
+  /**
+   * Get the current value of all metrics.
+   * @return metrics by name
+   */
+  @GET
+  @Authorization
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getMetrics() {
+    return Response.status(200).entity(Metrics.snapshot()).build();
+  }
+}
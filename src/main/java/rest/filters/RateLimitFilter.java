@@ -0,0 +1,63 @@
+package rest.filters;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.Metrics;
+import io.jsonwebtoken.Claims;
+import rest.annotation.Authorization;
+import services.RateLimiter;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * Rate limiting filter for authorized requests, run after the {@link AuthorizationFilter}
+ * (which provides the claims with the user ID). Reading costs less than writing.
+ * A request exceeding the rate of the user is rejected with 429 Too Many Requests.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+@Provider
+@Authorization
+@Priority(Priorities.AUTHORIZATION)
+public class RateLimitFilter implements ContainerRequestFilter {
+  private static final Logger log = LogManager.getLogger(RateLimitFilter.class);
+
+  private static final int READ_COST = 1;
+  private static final int WRITE_COST = 3;
+
+  private static final LongAdder rejected = Metrics.counter("ratelimit.rest.rejected");
+
+  @Override
+  public void filter(final ContainerRequestContext ctx) throws IOException {
+    var claims = Claims.class.cast(ctx.getProperty("claims"));
+    if (claims == null) {
+      return; // Already rejected by the authorization filter
+    }
+
+    var userId = claims.get("id", String.class);
+    var cost = HttpMethod.GET.equals(ctx.getMethod()) ? READ_COST : WRITE_COST;
+
+    var limiter = RateLimiter.getInstance();
+    if (!limiter.tryAcquire(userId, cost)) {
+      log.warn(String.format("Rate limit exceeded by %s on %s %s", userId, ctx.getMethod(), ctx.getUriInfo().getPath()));
+      rejected.increment();
+      ctx.abortWith(Response.status(Response.Status.TOO_MANY_REQUESTS)
+        .header(HttpHeaders.RETRY_AFTER, limiter.getRetryAfter(userId, cost))
+        .entity("Too many requests")
+        .build());
+    }
+  }
+}
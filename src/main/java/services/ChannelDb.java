@@ -6,7 +6,10 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -30,6 +33,15 @@ import services.DbUtils.ConstraintException;
 public class ChannelDb extends Db {
   private static final Logger log = LogManager.getLogger(ChannelDb.class);
 
+  // Latest messages of the channels being used
+  private static final MessageCache cache = new MessageCache(
+    Integer.getInteger("MESSAGE_CACHE_SIZE", 100), Long.getLong("MESSAGE_CACHE_BYTES", 32L * 1024 * 1024));
+
+  // Messages added concurrently are written together in batches
+  private static final MessageWriter writer = new MessageWriter(
+    Long.getLong("MESSAGE_BATCH_WINDOW_MS", 2), Integer.getInteger("MESSAGE_BATCH_SIZE", 64));
+  private static final long WRITE_TIMEOUT_MILLIS = Long.getLong("MESSAGE_WRITE_TIMEOUT_MS", 10000);
+
   /**
    * Creates a channel.
    * 
@@ -42,10 +54,6 @@ public class ChannelDb extends Db {
    */
   public static ChannelRecord createChannel(String name, String description, String creatorId)
   throws ReflectiveOperationException, SQLException, ConstraintException {
-    var query =
-      "insert into channels (id, name, description, created, creator_id) " +
-      "values (?, ?, ?, ?, ?)";
-
     var created = Instant.now().toEpochMilli();
 
     // "id" will be generated in DbUtils.updateWithId
@@ -53,7 +61,7 @@ public class ChannelDb extends Db {
 
     try {
       var db = new Db();
-      var id = DbUtils.updateWithID(db, query, parameters);
+      var id = DbUtils.updateWithID(db, Statements.CHANNEL_INSERT, parameters);
 
       var channel = new ChannelRecord();
       channel.id = id;
@@ -86,19 +94,18 @@ public class ChannelDb extends Db {
     var db = new Db();
 
     // Remove subscriptions on channel
-    var querySubscriptions = "delete from subscriptions where channel_id = ?";
-    var parametersSubscriptions = new String[] { channelId };
-    db.executeUpdate(querySubscriptions, parametersSubscriptions);
+    var parametersSubscriptions = new Object[] { channelId };
+    db.executeUpdate(Statements.SUBSCRIPTIONS_DELETE_BY_CHANNEL, parametersSubscriptions);
 
     // Remove messages for channel
-    var queryMessages = "delete from messages where channel_id = ?";
-    var parametersChannel = new String[] { channelId };
-    db.executeUpdate(queryMessages, parametersChannel);
+    var parametersChannel = new Object[] { channelId };
+    db.executeUpdate(Statements.MESSAGES_DELETE_BY_CHANNEL, parametersChannel);
 
     // Remove channel
-    var queryChannels = "delete from channels where id = ?";
-    var parametersChannels = new String[] { channelId };
-    db.executeUpdate(queryChannels, parametersChannels);
+    var parametersChannels = new Object[] { channelId };
+    db.executeUpdate(Statements.CHANNEL_DELETE, parametersChannels);
+
+    ChannelDb.cache.invalidate(channelId);
   }
 
   /**
@@ -108,21 +115,10 @@ public class ChannelDb extends Db {
    */
   public static ChannelRecord getChannel(String id)
   throws ReflectiveOperationException, SQLException {
-    var query =
-      "select c.*, count(subscr.channel_id) as subscriptions " +
-      "from channels c " +
-      "left join (select channel_id from subscriptions) as subscr on c.id = subscr.channel_id " +
-      "where c.id = ? " +
-      "group by c.id, c.description, c.created, subscr.channel_id ";
-
     var db = new Db();
-    var records = db.executeQuery(query, id);
+    var records = db.executeQuery(ChannelRecord.MAPPER, Statements.CHANNEL_SELECT, id);
 
-    var firstRecord = records.stream().findFirst();
-    if (firstRecord.isPresent()) {
-      return new ChannelRecord(firstRecord.get());
-    }
-    return null;
+    return records.isEmpty() ? null : records.get(0);
   }
 
     /**
@@ -131,18 +127,8 @@ public class ChannelDb extends Db {
    */
   public static List<ChannelRecord> getChannels()
   throws ReflectiveOperationException, SQLException {
-    var query =
-      "select c.*, count(subscr.channel_id) as subscriptions " +
-      "from channels c " +
-      "left join (select channel_id from subscriptions) as subscr on c.id = subscr.channel_id " +
-      "group by c.id, c.description, c.created, subscr.channel_id";
-
     var db = new Db();
-    var records = db.executeQuery(query);
-
-    return records.stream()
-      .map(record -> new ChannelRecord(record))
-      .collect(Collectors.toList());
+    return db.executeQuery(ChannelRecord.MAPPER, Statements.CHANNELS_SELECT);
   }
 
   /**
@@ -152,19 +138,8 @@ public class ChannelDb extends Db {
    */
   public static List<ChannelRecord> getChannels(String userId)
   throws ReflectiveOperationException, SQLException {
-    var query =
-      "select c.*, count(subscr.channel_id) as subscriptions " +
-      "from subscriptions s " +
-      "join channels c on c.id = s.channel_id and s.user_id = ? " +
-      "join (select channel_id from subscriptions) as subscr on c.id = subscr.channel_id " +
-      "group by c.id, c.description, c.created, subscr.channel_id";
-
     var db = new Db();
-    var records = db.executeQuery(query, userId);
-
-    return records.stream()
-      .map(record -> new ChannelRecord(record))
-      .collect(Collectors.toList());
+    return db.executeQuery(ChannelRecord.MAPPER, Statements.CHANNELS_SELECT_BY_USER, userId);
   }
 
   /**
@@ -174,11 +149,10 @@ public class ChannelDb extends Db {
    */
   public static void subscribeChannel(String userId, String channelId)
   throws ReflectiveOperationException, SQLException {
-    var query = "insert into subscriptions (user_id, channel_id) values (?, ?)";
-    var parameters = new String[] { userId, channelId };
+    var parameters = new Object[] { userId, channelId };
 
     var db = new Db();
-    db.executeUpdate(query, parameters);
+    db.executeUpdate(Statements.SUBSCRIPTION_INSERT, parameters);
   }
 
   /**
@@ -188,11 +162,10 @@ public class ChannelDb extends Db {
    */
   public static void unsubscribeChannel(String userId, String channelId)
   throws ReflectiveOperationException, SQLException {
-    var query = "delete from subscriptions where user_id = ? and channel_id = ?";
-    var parameters = new String[] { userId, channelId };
+    var parameters = new Object[] { userId, channelId };
 
     var db = new Db();
-    db.executeUpdate(query, parameters);
+    db.executeUpdate(Statements.SUBSCRIPTION_DELETE, parameters);
   }
 
   /**
@@ -206,23 +179,55 @@ public class ChannelDb extends Db {
     var id = Id.generate();
     var created = Instant.now().toEpochMilli();
 
-    var query = "insert into messages (id, channel_id, user_id, created, data) values  (?, ?, ?, ?, ?)";
     var parameters = new Object[] { id, channelId, userId, created, DbUtils.serialize(data) };
 
-    var db = new Db();
-    db.executeUpdate(query, parameters);
+    var index = ChannelDb.writer.add(parameters); // Written with any other messages added meanwhile
 
     var message = new MessageRecord();
     message.id = id;
     message.channelId = channelId;
     message.userId = userId;
-    message.index = -1; // Not needed (no pagination)
+    message.index = join(index); // Needed for pagination of cached messages
     message.created = BigDecimal.valueOf(created);
     message.type = data instanceof Image ? "image" : "text";
     message.data = data;
+
+    ChannelDb.cache.add(message);
     return message;
   }
 
+  /**
+   * Get a message of a channel.
+   * @param messageId ID of the message
+   * @param channelId ID of the channel
+   * @return the message or null if not found
+   */
+  public static MessageRecord getMessage(String messageId, String channelId)
+  throws ReflectiveOperationException, SQLException, IOException {
+    var db = new Db();
+    var records = db.executeQuery(MessageRecord.MAPPER, Statements.MESSAGE_SELECT, messageId, channelId);
+
+    return records.isEmpty() ? null : records.get(0);
+  }
+
+  /**
+   * Updates the data of a message.
+   * @param messageId ID of the message
+   * @param channelId ID of the channel
+   * @param data Message
+   * @return amount of affected messages
+   */
+  public static int updateMessage(String messageId, String channelId, Object data)
+  throws ReflectiveOperationException, SQLException, IOException {
+    var parameters = new Object[] { DbUtils.serialize(data), messageId, channelId };
+
+    var db = new Db();
+    var affected = db.executeUpdate(Statements.MESSAGE_UPDATE, parameters);
+
+    ChannelDb.cache.update(messageId, channelId, data);
+    return affected;
+  }
+
   /**
    * Removes a message associated by a user and channel.
    * @param messageId ID of the message 
@@ -231,15 +236,20 @@ public class ChannelDb extends Db {
    */
   public static int removeMessage(String messageId, String channelId, String userId)
   throws ReflectiveOperationException, SQLException {
-    var query = "delete from messages where id = ? and channel_id = ? and user_id = ?";
-    var parameters = new String[] { messageId, channelId, userId };
+    var parameters = new Object[] { messageId, channelId, userId };
 
     var db = new Db();
-    return db.executeUpdate(query, parameters);
+    var affected = db.executeUpdate(Statements.MESSAGE_DELETE, parameters);
+
+    if (affected > 0) {
+      ChannelDb.cache.remove(messageId, channelId);
+    }
+    return affected;
   }
 
   /**
-   * Get messages with pagination for a channel.
+   * Get messages with pagination for a channel, served from the cache if it covers the page.
+   * The latest messages of a channel are loaded into the cache when first requested.
    * @param channelId ID of the channel
    * @param from Query from index
    * @param limit Amount of records to retrieve
@@ -247,11 +257,42 @@ public class ChannelDb extends Db {
    */
   public static StoredMessages getMessages(String channelId, Integer from, int limit)
   throws ReflectiveOperationException, SQLException, IOException {
-    var query = "select * from messages where channel_id = ? ";
-    if (from != null) {
-      query += "and idx < ? ";
+    var cached = ChannelDb.cache.get(channelId, from, limit);
+    if (cached != null) {
+      return cached;
+    }
+
+    if (from == null && limit <= ChannelDb.cache.getSize()) {
+      ChannelDb.cache.beginLoad(channelId);
+      var latest = queryMessages(channelId, null, ChannelDb.cache.getSize());
+      ChannelDb.cache.endLoad(channelId, latest.records, !latest.hasMore);
+
+      var messages = new StoredMessages();
+      messages.records = new ArrayList<>(latest.records.subList(0, Math.min(latest.records.size(), limit)));
+      messages.hasMore = latest.records.size() > limit || latest.hasMore;
+      return messages;
     }
-    query += "order by created desc limit ?";
+    return queryMessages(channelId, from, limit);
+  }
+
+  /**
+   * Forget the cached messages of a channel, e.g. when they have been changed by another node.
+   * @param channelId ID of the channel
+   */
+  public static void invalidateMessages(String channelId) {
+    ChannelDb.cache.invalidate(channelId);
+  }
+
+  /**
+   * Query messages with pagination for a channel.
+   * @param channelId ID of the channel
+   * @param from Query from index
+   * @param limit Amount of records to retrieve
+   * @return the records and whether the query has reached the end
+   */
+  private static StoredMessages queryMessages(String channelId, Integer from, int limit)
+  throws ReflectiveOperationException, SQLException, IOException {
+    var statement = from == null ? Statements.MESSAGES_SELECT_LATEST : Statements.MESSAGES_SELECT_BEFORE;
 
     // Add 1 for checking if there are more data existing
     var limitWithOffset = limit + 1;
@@ -259,18 +300,44 @@ public class ChannelDb extends Db {
     var parameters = from == null ? new Object[] { channelId, limitWithOffset } : new Object[] { channelId, from, limitWithOffset };
 
     var db = new Db();
-    var records = db.executeQuery(query, parameters);
+    var records = db.executeQuery(MessageRecord.MAPPER, statement, parameters);
 
     var messages = new StoredMessages();
-    messages.records = new ArrayList<>();
     messages.hasMore = records.size() > limit;
 
     log.debug(String.format("More records exists: %s > %s = %s", records.size(), limit, records.size() > limit));
 
-    for (int i = 0; i < Math.min(records.size(), limit); i++) {
-      var message = new MessageRecord(records.get(i));
-      messages.records.add(message);
-    }
+    messages.records = new ArrayList<>(records.subList(0, Math.min(records.size(), limit)));
     return messages;
   }
+
+  /**
+   * Wait for a message to be written by the writer, at most MESSAGE_WRITE_TIMEOUT_MS.
+   * A message timing out may still be written later on.
+   * @param index Future of the generated index
+   * @return index of the message
+   */
+  private static int join(CompletableFuture<Integer> index)
+  throws ReflectiveOperationException, SQLException {
+    try {
+      return index.get(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new SQLException(String.format("Message was not written within %s ms", WRITE_TIMEOUT_MILLIS), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for message to be written", e);
+    } catch (ExecutionException e) {
+      var cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException)cause;
+      }
+      if (cause instanceof ReflectiveOperationException) {
+        throw (ReflectiveOperationException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new SQLException("Could not write message", cause);
+    }
+  }
 }
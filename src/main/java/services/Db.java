@@ -2,13 +2,10 @@ package services;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.ResultSet;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -16,8 +13,7 @@ import javax.sql.DataSource;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-
-import datastructures.Record;
+import org.postgresql.PGStatement;
 
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
@@ -26,7 +22,9 @@ import datastructures.Record;
  * queries and manipulations (DQL and DML).
  * 
  * Using prepared statement as this will be faster for continuous inserts and
- * more important its prevents sql injection.
+ * more important its prevents sql injection. The fixed statements of the
+ * services are declared in a catalog and run as server-side prepared
+ * statements (see {@link Statements}).
  *
  * References:
  * https://www.geeksforgeeks.org/sql-ddl-dql-dml-dcl-tcl-commands
@@ -75,26 +73,6 @@ public class Db {
     }
   } 
 
-  /**
-   * Extracts records from the result using the containing metadata.
-   * @param rs The result set with records and metadata
-   * @return a list with mapped data representing a database row
-   */
-  protected static List<Record> extractRecords(ResultSet rs) throws SQLException {
-    var records = new ArrayList<Record>();
-    while (rs.next()) {
-      var md = rs.getMetaData();
-      var record = new HashMap<String, Object>();
-      for (int i = 0; i < md.getColumnCount(); i++) {
-        var column = md.getColumnName(i + 1);
-        var value = rs.getObject(i + 1);
-        record.put(column, value);
-      }
-      records.add(new Record(record));
-    }
-    return records;
-  }
-
   /**
    * Retrieves a connection from the pool.
    */
@@ -112,27 +90,87 @@ public class Db {
     return Db.psqlDataSource.getConnection();
   }
 
+  /**
+   * Retrieves a connection to be held by the caller, e.g. for listening on notifications.
+   * The connection must be closed by the caller.
+   * @return connection
+   */
+  public Connection open() throws ReflectiveOperationException, SQLException {
+    return this.connect();
+  }
+
+  /**
+   * Prepare a statement of the catalog, to be run as a server-side prepared statement
+   * from its first execution. The statement must be closed by the caller.
+   * @param connection Connection to prepare the statement on
+   * @param statement Statement of the catalog
+   * @param keys Names of generated columns to be returned, if any
+   * @return prepared statement
+   */
+  public static PreparedStatement prepare(Connection connection, Statements statement, String... keys) throws SQLException {
+    var prepared = keys.length == 0
+      ? connection.prepareStatement(statement.getSql())
+      : connection.prepareStatement(statement.getSql(), keys);
+    if (prepared.isWrapperFor(PGStatement.class)) { // The pool wraps the statements of the driver
+      prepared.unwrap(PGStatement.class).setPrepareThreshold(1);
+    }
+    return prepared;
+  }
+
+  /**
+   * Execute query (DQL) of the statement catalog.
+   * @param mapper Mapper of the resulting rows
+   * @param statement Statement to be run
+   * @param parameters Parameters used in statement
+   * @return records mapped from the result of the query
+   */
+  public final <R, E extends Exception> List<R> executeQuery(RowMapper<R, E> mapper, Statements statement, Object... parameters)
+  throws SQLException, ReflectiveOperationException, E {
+    QueryTracer.trace(statement.getSql(), parameters);
+
+    try (
+      var connection = this.connect();
+      var prepared = Db.prepare(connection, statement);
+    ) {
+      return query(prepared, mapper, statement.getSql(), parameters);
+    }
+  }
+
   /**
    * Execute query (DQL)
+   * @param mapper Mapper of the resulting rows
    * @param query Query to be run
    * @param parameters Parameters used in query
-   * @return result from query
+   * @return records mapped from the result of the query
    * @throws ReflectiveOperationException
    */
-  @SafeVarargs
-  public final <T extends Object> List<Record> executeQuery(String query, T... parameters)
-  throws SQLException, ReflectiveOperationException {
-    log(query, parameters);
+  public final <R, E extends Exception> List<R> executeQuery(RowMapper<R, E> mapper, String query, Object... parameters)
+  throws SQLException, ReflectiveOperationException, E {
+    QueryTracer.trace(query, parameters);
 
     try (
       var connection = this.connect();
       var statement = connection.prepareStatement(query);
     ) {
-      for (int i = 0; i < parameters.length; i++) {
-        statement.setObject(i + 1, parameters[i]);
-      }
-      var rs = statement.executeQuery();
-      return extractRecords(rs);
+      return query(statement, mapper, query, parameters);
+    }
+  }
+
+  /**
+   * Execute update (DML) of the statement catalog.
+   * @param statement Statement to be run
+   * @param parameters Parameters used in statement
+   * @return amount of affected rows
+   */
+  public final int executeUpdate(Statements statement, Object... parameters)
+  throws SQLException, ReflectiveOperationException {
+    QueryTracer.trace(statement.getSql(), parameters);
+
+    try (
+      var connection = this.connect();
+      var prepared = Db.prepare(connection, statement);
+    ) {
+      return update(prepared, statement.getSql(), parameters);
     }
   }
 
@@ -144,56 +182,62 @@ public class Db {
    * @return
    * @throws ReflectiveOperationException
    */
-  @SafeVarargs
-  public final <T extends Object> int executeUpdate(String query, T... parameters)
+  public final int executeUpdate(String query, Object... parameters)
   throws SQLException, ReflectiveOperationException {
-    log(query, parameters);
+    QueryTracer.trace(query, parameters);
 
     try (
       var connection = this.connect();
       var statement = connection.prepareStatement(query);
     ) {
+      return update(statement, query, parameters);
+    }
+  }
+
+  /**
+   * Run a prepared query and map its rows.
+   * @param statement Prepared statement
+   * @param mapper Mapper of the resulting rows
+   * @param query Query of the statement (for tracing)
+   * @param parameters Parameters used in query
+   * @return records
+   */
+  private static <R, E extends Exception> List<R> query(PreparedStatement statement, RowMapper<R, E> mapper, String query, Object[] parameters)
+  throws SQLException, ReflectiveOperationException, E {
+    var start = QueryTracer.start();
+    try {
       for (int i = 0; i < parameters.length; i++) {
         statement.setObject(i + 1, parameters[i]);
       }
-      return statement.executeUpdate();
+      try (var rs = statement.executeQuery()) {
+        var row = mapper.compile(rs); // Resolve columns once for all rows
+        var records = new ArrayList<R>();
+        while (rs.next()) {
+          records.add(row.map(rs));
+        }
+        return records;
+      }
+    } finally {
+      QueryTracer.end(query, start);
     }
   }
 
   /**
-   * Log query and parameters for debugging.
-   * @param query Query to be run
+   * Run a prepared update.
+   * @param statement Prepared statement
+   * @param query Query of the statement (for tracing)
    * @param parameters Parameters used in query
+   * @return amount of affected rows
    */
-  @SafeVarargs
-  private final <T extends Object> void log(String query, T ...parameters) {
-    log.debug(String.format("SQL -> STATEMENT: %s", query));
-    log.debug(String.format("SQL -> PARAMETERS: %s", Arrays.asList(parameters)
-      .stream()
-      .map(value -> value == null ? "null" : value.toString())
-      .collect(Collectors.joining(", "))));
-
-    // Log out a processed query when parameters and query has been merged,
-    // for easier locate errors in faulty queries
-    var parameterCount = ((Long)query.chars().filter(c -> (char)c == '?').count()).intValue();
-    log.debug(String.format("Parameter count: %s", parameterCount));
-
-    var params = new Object[Math.max(parameterCount, parameters.length)];
-    Arrays.fill(params, "null"); // Default to null for parameters missing
-
-    // System.arraycopy(parameters, 0, params, 0, parameters.length);
-
-    for (int i = 0; i < parameters.length; i++) {
-      var parameter = parameters[i];
-      if (parameter != null) {
-        params[i] = parameters[i];
+  private static int update(PreparedStatement statement, String query, Object[] parameters) throws SQLException {
+    var start = QueryTracer.start();
+    try {
+      for (int i = 0; i < parameters.length; i++) {
+        statement.setObject(i + 1, parameters[i]);
       }
+      return statement.executeUpdate();
+    } finally {
+      QueryTracer.end(query, start);
     }
-
-    var queryOutput = query;
-    for (var parameter : params) {
-      queryOutput = queryOutput.replaceFirst("\\?", parameter.toString());
-    }
-    log.debug(String.format("SQL -> PROCESSED: %s", queryOutput));
   }
 }
@@ -102,13 +102,13 @@ public class DbUtils {
 
   /**
    * Executes update and handles unique key violation. 
-   * @param query Query to be run
+   * @param statement Statement to be run
    * @param parameters Parameters used in query
    */
-  private static void updateUsingID(Db db, String query, Object ... parameters)
+  private static void updateUsingID(Db db, Statements statement, Object ... parameters)
   throws ReflectiveOperationException, SQLException, ConstraintException, PrimaryKeyConstraintException {
     try {
-      db.executeUpdate(query, parameters);
+      db.executeUpdate(statement, parameters);
     } catch (PSQLException e) {
       var error = e.getServerErrorMessage();
       var state = e.getSQLState();
@@ -129,11 +129,11 @@ public class DbUtils {
   /**
    * Executes update but with the field ID populated with a unique generated
    * string.
-   * @param query Query to be run
+   * @param statement Statement to be run
    * @param parameters Parameters used in query
    * @return generated id
    */
-  protected static String updateWithID(Db db, String query, Object... parameters)
+  protected static String updateWithID(Db db, Statements statement, Object... parameters)
   throws ReflectiveOperationException, SQLException, ConstraintException {
     var tries = 0;
     while (tries <= 5) {
@@ -146,7 +146,7 @@ public class DbUtils {
         params.add(id);
         params.addAll(Arrays.asList(parameters));
 
-        updateUsingID(db, query, params.toArray());
+        updateUsingID(db, statement, params.toArray());
 
         return id; // Return the generated ID (PK)
       } catch (PrimaryKeyConstraintException e) {
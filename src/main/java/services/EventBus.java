@@ -0,0 +1,28 @@
+package services;
+
+import java.util.function.Consumer;
+
+import datastructures.WsBusEvent;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * A bus of events between the nodes running the service. An event published on one
+ * node is delivered once to every node (the publishing node included), in the order
+ * they were published, each node then fans it out to its own connections.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public interface EventBus {
+  /**
+   * Publish an event to all nodes.
+   * @param event Event
+   */
+  void publish(WsBusEvent event);
+
+  /**
+   * Subscribe on events published by any node.
+   * @param handler Handler of delivered events
+   */
+  void subscribe(Consumer<WsBusEvent> handler);
+}
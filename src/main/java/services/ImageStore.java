@@ -0,0 +1,103 @@
+package services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import datastructures.ImageData;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * Service storing images, temporarily on the Tomcat server and persistently
+ * in AWS Simple Storage (S3) from where they are served.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class ImageStore {
+  private static final Logger log = LogManager.getLogger(ImageStore.class);
+
+  private static final Pattern FORMAT_PATTERN = Pattern.compile("\\w+");
+
+  private ImageStore() {
+    throw new InstantiationError("Forbidden instantiation");
+  }
+
+  /**
+   * Store an image locally and in AWS S3, an image is only stored once.
+   * @param image Image to be stored
+   * @return URL where the image is obtainable
+   */
+  public static String store(ImageData image)
+  throws IOException {
+    // The format is used in the file path, the S3 key and the URL
+    if (image.format == null || !FORMAT_PATTERN.matcher(image.format).matches()) {
+      throw new IOException(String.format("Invalid image format: %s", image.format));
+    }
+
+    var checksum = getCheckSum(image.data);
+    var catalinaBaseDir = System.getProperty("catalina.base");
+    var directory = System.getProperty("IMAGES");
+
+    var filePath = String.format("%s/%s/%s.%s", catalinaBaseDir, directory, checksum, image.format);
+    log.info(String.format("Attempting to store image at: %s", filePath));
+
+    var file = new File(filePath);
+    // As the filename is being generated using a checksum we only write if the file does not
+    // exist since earlier, if it exist the resuse that url 
+    if (!file.exists()) {
+      // If create upload directory on server if not existing
+      file.getParentFile().mkdirs();
+
+      // Write file locally on Tomcat (temporary storage)
+      Files.write(file.toPath(), image.data);
+
+      log.info(String.format("Successfully written image to: %s", file));
+
+      // Store in AWS S3 (simple service)
+      // Add file also ınto a "persistent storage" and broadcast the image url to this storage
+      // instead of using the Tomcat to host files, which will have the leverage of minimizing the amount
+      // of traffic going to the server and save space on the disc
+      var s3 = new S3(System.getProperty("AWS_S3_UPLOAD"));
+      s3.put(String.format("images/%s.%s", checksum, image.format), file);
+
+      log.info("Image successfully stored");
+    } else {
+      log.info("Image already stored");
+    }
+
+    log.info(String.format("Image located in server at: %s", file.getAbsolutePath()));
+
+    var region = System.getProperty("AWS_REGION");
+    var bucket = System.getProperty("AWS_S3_UPLOAD");
+    var imageUrl = String.format("https://%s.s3-%s.amazonaws.com/images/%s.%s", bucket, region, checksum, image.format);
+
+    log.info(String.format("Image is obtainable from S3 at: %s", imageUrl));
+    return imageUrl;
+  }
+
+  /**
+   * Get file checksum for when storing, if file already exists do not store it.
+   * https://stackoverflow.com/a/34448106
+   * https://stackoverflow.com/a/26231444
+   * @param bytes Bytes to calculate checksum on
+   * @return checksum as a hash
+   */
+  private static String getCheckSum(byte[] bytes) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      return DatatypeConverter.printHexBinary(md.digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+}
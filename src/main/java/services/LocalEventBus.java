@@ -0,0 +1,31 @@
+package services;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import datastructures.WsBusEvent;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * An in-process event bus, for running a single node (and testing). Events are
+ * delivered right away on the publishing thread.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class LocalEventBus implements EventBus {
+  private final List<Consumer<WsBusEvent>> handlers = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void publish(WsBusEvent event) {
+    for (var handler : handlers) {
+      handler.accept(event);
+    }
+  }
+
+  @Override
+  public void subscribe(Consumer<WsBusEvent> handler) {
+    handlers.add(handler);
+  }
+}
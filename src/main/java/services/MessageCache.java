@@ -0,0 +1,289 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import datastructures.Image;
+import datastructures.MessageRecord;
+import datastructures.StoredMessages;
+import datastructures.Text;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Cache of the latest messages of each channel, the page every client loads when
+ * opening a channel is then served without querying and deserializing rows from the database.
+ * Messages added, updated and removed are written through, so a cached page is always
+ * a contiguous run of the latest messages of the channel.
+ *
+ * The cache has a memory budget (estimated), when exceeded the channels that have
+ * been used the least recently are evicted.
+ *
+ * A page loaded from the database is only cached if the channel has not been written
+ * meanwhile, otherwise a message written between the query and caching would be lost.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class MessageCache {
+  // Rough overhead of a cached message, the record, its data and the strings
+  private static final int RECORD_OVERHEAD = 256;
+
+  private final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(16, 0.75f, true); // Access ordered
+  private final ConcurrentHashMap<String, Boolean> loading = new ConcurrentHashMap<>(); // Channel -> written
+  private final int size;
+  private final long budget;
+  private long bytes;
+
+  /**
+   * Constructor.
+   * @param size Amount of messages cached per channel
+   * @param budget Max amount of (estimated) bytes cached
+   */
+  public MessageCache(int size, long budget) {
+    this.size = size;
+    this.budget = budget;
+  }
+
+  /**
+   * Get amount of messages cached per channel, being loaded on a miss.
+   * @return size
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Get a page of messages of a channel if covered by the cache.
+   * @param channelId ID of the channel
+   * @param from Messages prior to this index, or null for the latest
+   * @param limit Amount of messages
+   * @return the messages or null if not cached
+   */
+  public synchronized StoredMessages get(String channelId, Integer from, int limit) {
+    var page = pages.get(channelId);
+    if (page == null) {
+      return null;
+    }
+
+    var records = new ArrayList<MessageRecord>(limit);
+    var iterator = page.records.iterator();
+    while (iterator.hasNext() && records.size() <= limit) { // One more for checking if there are more
+      var record = iterator.next();
+      if (from == null || record.index < from) {
+        records.add(record);
+      }
+    }
+
+    var hasMore = records.size() > limit;
+    if (!hasMore && !page.complete) {
+      return null; // Page continues beyond the cached messages
+    }
+
+    var messages = new StoredMessages();
+    messages.records = hasMore ? records.subList(0, limit) : records;
+    messages.hasMore = hasMore;
+    return messages;
+  }
+
+  /**
+   * Begin loading the latest messages of a channel from the database.
+   * @param channelId ID of the channel
+   */
+  public void beginLoad(String channelId) {
+    loading.put(channelId, false);
+  }
+
+  /**
+   * Cache the latest messages of a channel loaded from the database, unless the channel
+   * has been written since loading began.
+   * @param channelId ID of the channel
+   * @param records Latest messages, the latest first
+   * @param complete Whether these are all messages of the channel
+   */
+  public synchronized void endLoad(String channelId, List<MessageRecord> records, boolean complete) {
+    var written = loading.remove(channelId);
+    if (written == null || written || pages.containsKey(channelId)) {
+      return; // Written (or loaded by someone else) meanwhile
+    }
+
+    var page = new Page();
+    page.complete = complete;
+    for (var record : records) {
+      page.records.addLast(record);
+      page.bytes += estimate(record);
+    }
+    pages.put(channelId, page);
+    bytes += page.bytes;
+    evict();
+  }
+
+  /**
+   * Write through a message that has been added. The message may already be cached, if
+   * the page was loaded after the message was written, and messages written concurrently
+   * may be added out of order, so it is put in order of its index unless already cached.
+   * @param message Added message
+   */
+  public synchronized void add(MessageRecord message) {
+    var page = written(message.channelId);
+    if (page == null) {
+      return;
+    }
+
+    var iterator = page.records.listIterator();
+    while (iterator.hasNext()) {
+      var record = iterator.next();
+      if (record.index.equals(message.index)) {
+        return; // Already cached
+      }
+      if (record.index < message.index) {
+        iterator.previous();
+        break;
+      }
+    }
+    if (!iterator.hasNext() && !page.records.isEmpty() && !page.complete) {
+      return; // Older than the cached messages, beyond the page
+    }
+
+    iterator.add(message);
+    page.bytes += estimate(message);
+    bytes += estimate(message);
+
+    if (page.records.size() > size) {
+      var removed = page.records.removeLast();
+      page.bytes -= estimate(removed);
+      bytes -= estimate(removed);
+      page.complete = false;
+    }
+    evict();
+  }
+
+  /**
+   * Write through a message that has been updated.
+   * @param messageId ID of the message
+   * @param channelId ID of the channel
+   * @param data Message data
+   */
+  public synchronized void update(String messageId, String channelId, Object data) {
+    var page = written(channelId);
+    if (page == null) {
+      return;
+    }
+
+    var iterator = page.records.listIterator();
+    while (iterator.hasNext()) {
+      var record = iterator.next();
+      if (record.id.equals(messageId)) {
+        // Replaced (not changed) as the cached record may be being serialized
+        var updated = new MessageRecord();
+        updated.id = record.id;
+        updated.userId = record.userId;
+        updated.channelId = record.channelId;
+        updated.index = record.index;
+        updated.created = record.created;
+        updated.type = data instanceof Image ? "image" : "text";
+        updated.data = data;
+        iterator.set(updated);
+
+        page.bytes += estimate(updated) - estimate(record);
+        bytes += estimate(updated) - estimate(record);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Write through a message that has been removed.
+   * @param messageId ID of the message
+   * @param channelId ID of the channel
+   */
+  public synchronized void remove(String messageId, String channelId) {
+    var page = written(channelId);
+    if (page == null) {
+      return;
+    }
+
+    Iterator<MessageRecord> iterator = page.records.iterator();
+    while (iterator.hasNext()) {
+      var record = iterator.next();
+      if (record.id.equals(messageId)) {
+        iterator.remove();
+        page.bytes -= estimate(record);
+        bytes -= estimate(record);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Remove all cached messages of a channel.
+   * @param channelId ID of the channel
+   */
+  public synchronized void invalidate(String channelId) {
+    var page = written(channelId);
+    if (page != null) {
+      pages.remove(channelId);
+      bytes -= page.bytes;
+    }
+  }
+
+  /**
+   * A channel is being written, mark any load in progress as stale.
+   * @param channelId ID of the channel
+   * @return cached page of the channel or null
+   */
+  private Page written(String channelId) {
+    loading.computeIfPresent(channelId, (k, v) -> true);
+    return pages.get(channelId);
+  }
+
+  /**
+   * Evict the least recently used channels until within the budget.
+   */
+  private void evict() {
+    var iterator = pages.entrySet().iterator();
+    while (bytes > budget && iterator.hasNext()) {
+      Map.Entry<String, Page> eldest = iterator.next();
+      bytes -= eldest.getValue().bytes;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Estimate memory used by a cached message.
+   * @param record Message
+   * @return estimated size in bytes
+   */
+  private static long estimate(MessageRecord record) {
+    var size = RECORD_OVERHEAD + length(record.id) + length(record.userId) + length(record.channelId);
+    if (record.data instanceof Image) {
+      var image = Image.class.cast(record.data);
+      size += length(image.text) + length(image.imageUrl);
+    } else if (record.data instanceof Text) {
+      size += length(Text.class.cast(record.data).text);
+    }
+    return size;
+  }
+
+  /**
+   * Get estimated memory used by a string.
+   * @param value String
+   * @return size in bytes
+   */
+  private static int length(String value) {
+    return value == null ? 0 : value.length() * 2;
+  }
+
+  /**
+   * Cached messages of a channel, guarded by the cache.
+   */
+  private static class Page {
+    private final LinkedList<MessageRecord> records = new LinkedList<>(); // Latest first
+    private boolean complete; // All messages of the channel are cached
+    private long bytes;
+  }
+}
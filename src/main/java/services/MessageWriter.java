@@ -0,0 +1,268 @@
+package services;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.Metrics;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * Writes messages in batches (group commit). Messages added concurrently are collected
+ * for a short window, or until a batch is full, and then inserted with one JDBC batch
+ * in one transaction on one connection, instead of one connection and one commit per
+ * message. The writer has a thread of its own, batches are written one at a time in
+ * the order the messages were added.
+ *
+ * The window is only opened if more messages are waiting when a batch is started, i.e.
+ * while messages are added faster than they are written; a message added to an idle
+ * writer is written right away. Actions of a channel are processed one at a time (see
+ * ActionDispatcher), so a channel never has more than one message waiting; waiting out
+ * the window for every message would cap a busy channel at a message per window.
+ *
+ * Each message is completed on its own with the index generated for it. If a batch
+ * fails, e.g. because a channel has been deleted meanwhile, it is rolled back and its
+ * messages are written one by one, so only the failing messages fail.
+ *
+ * If the writer thread is interrupted (e.g. when the application is stopped) it stops,
+ * failing any messages waiting and any messages added from then on.
+ *
+ * References:
+ * https://docs.oracle.com/javase/tutorial/jdbc/basics/retrieving.html#batch_updates
+ * https://jdbc.postgresql.org/documentation/head/query.html
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class MessageWriter {
+  private static final Logger log = LogManager.getLogger(MessageWriter.class);
+
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+  private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final long windowNanos;
+  private final int maxBatch;
+  private volatile boolean closed;
+
+  private final LongAdder batches = Metrics.counter("db.messages.batches");
+  private final LongAdder rows = Metrics.counter("db.messages.rows");
+  private final LongAdder fallbacks = Metrics.counter("db.messages.fallbacks");
+
+  /**
+   * A message waiting to be written.
+   */
+  private static class Pending {
+    private final Object[] parameters;
+    private final CompletableFuture<Integer> index = new CompletableFuture<>();
+
+    private Pending(Object[] parameters) {
+      this.parameters = parameters;
+    }
+  }
+
+  /**
+   * Constructor, starts the writer right away.
+   * @param windowMillis Milliseconds to collect messages after the first one of a batch, 0 to only
+   *                     batch messages already waiting
+   * @param maxBatch Max amount of messages in a batch
+   */
+  public MessageWriter(long windowMillis, int maxBatch) {
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatch = Math.max(1, maxBatch);
+
+    var writer = new Thread(this::run, "message-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Add a message to be written.
+   * @param parameters Parameters of the insert statement (see {@link Statements#MESSAGE_INSERT})
+   * @return future completed with the generated index of the message
+   */
+  public CompletableFuture<Integer> add(Object[] parameters) {
+    var pending = new Pending(parameters);
+    queue.add(pending);
+    if (closed && queue.remove(pending)) { // Stopped meanwhile, nothing will take it
+      pending.index.completeExceptionally(new SQLException("Message writer has been stopped"));
+    }
+    return pending.index;
+  }
+
+  /**
+   * Write batches for as long as the application runs.
+   */
+  private void run() {
+    var batch = new ArrayList<Pending>(maxBatch);
+    while (true) {
+      try {
+        collect(batch);
+      } catch (InterruptedException e) {
+        close(batch);
+        return;
+      }
+
+      try (Connection connection = new Db().open()) {
+        write(connection, batch);
+      } catch (Exception e) {
+        log.error(String.format("Could not write %s messages", batch.size()), e);
+        fail(batch, e);
+        pause();
+      }
+      batch.clear();
+
+      if (Thread.currentThread().isInterrupted()) { // E.g. while pausing
+        close(batch);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stop writing, failing the messages collected, waiting and added from now on.
+   * @param batch Messages collected
+   */
+  private void close(List<Pending> batch) {
+    log.warn("Message writer was interrupted, no more messages will be written");
+    closed = true;
+    queue.drainTo(batch);
+    fail(batch, new SQLException("Message writer has been stopped"));
+  }
+
+  /**
+   * Wait for a message and collect any more messages waiting, and if there are any also
+   * the messages added within the window.
+   * @param batch Batch to collect into
+   */
+  private void collect(List<Pending> batch) throws InterruptedException {
+    batch.add(queue.take());
+    if (queue.isEmpty()) {
+      return; // Not loaded, write right away
+    }
+    var deadline = System.nanoTime() + windowNanos;
+    while (batch.size() < maxBatch) {
+      var remaining = deadline - System.nanoTime();
+      var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+      if (next == null) {
+        return;
+      }
+      batch.add(next);
+    }
+  }
+
+  /**
+   * Write a batch in one transaction, or one by one if the transaction fails.
+   * @param connection Connection to write on
+   * @param batch Messages to be written
+   */
+  private void write(Connection connection, List<Pending> batch) throws SQLException {
+    var sql = Statements.MESSAGE_INSERT.getSql();
+    var autoCommit = connection.getAutoCommit();
+    var indexes = new ArrayList<Integer>(batch.size());
+
+    connection.setAutoCommit(false);
+    try (var statement = Db.prepare(connection, Statements.MESSAGE_INSERT, "idx")) {
+      var start = QueryTracer.start();
+      try {
+        for (var pending : batch) {
+          QueryTracer.trace(sql, pending.parameters);
+          for (int i = 0; i < pending.parameters.length; i++) {
+            statement.setObject(i + 1, pending.parameters[i]);
+          }
+          statement.addBatch();
+        }
+        statement.executeBatch();
+
+        try (var keys = statement.getGeneratedKeys()) {
+          while (keys.next()) {
+            indexes.add(keys.getInt(1));
+          }
+        }
+        if (indexes.size() != batch.size()) {
+          throw new SQLException(String.format("Got %s indexes for %s messages", indexes.size(), batch.size()));
+        }
+        connection.commit();
+      } finally {
+        QueryTracer.end(sql, start);
+      }
+    } catch (SQLException e) {
+      connection.rollback();
+      if (batch.size() == 1) {
+        batch.get(0).index.completeExceptionally(e); // Nothing else to try
+        return;
+      }
+      log.warn(String.format("Could not write batch of %s messages, writing them one by one", batch.size()), e);
+      fallbacks.increment();
+      connection.setAutoCommit(true);
+      writeEach(connection, batch);
+      return;
+    } finally {
+      connection.setAutoCommit(autoCommit); // The connection is returned to the pool
+    }
+
+    batches.increment();
+    rows.add(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      batch.get(i).index.complete(indexes.get(i));
+    }
+  }
+
+  /**
+   * Write messages one by one, each in a transaction of its own.
+   * @param connection Connection to write on, in auto commit
+   * @param batch Messages to be written
+   */
+  private void writeEach(Connection connection, List<Pending> batch) throws SQLException {
+    var sql = Statements.MESSAGE_INSERT.getSql();
+    try (var statement = Db.prepare(connection, Statements.MESSAGE_INSERT, "idx")) {
+      for (var pending : batch) {
+        var start = QueryTracer.start();
+        try {
+          for (int i = 0; i < pending.parameters.length; i++) {
+            statement.setObject(i + 1, pending.parameters[i]);
+          }
+          statement.executeUpdate();
+          try (var keys = statement.getGeneratedKeys()) {
+            keys.next();
+            rows.increment();
+            pending.index.complete(keys.getInt(1));
+          }
+        } catch (SQLException e) {
+          pending.index.completeExceptionally(e);
+        } finally {
+          QueryTracer.end(sql, start);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fail messages that has not been completed.
+   * @param batch Messages
+   * @param e Cause
+   */
+  private static void fail(List<Pending> batch, Exception e) {
+    for (var pending : batch) {
+      pending.index.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Pause after failing to write, e.g. when the database is unreachable, not to spin.
+   */
+  private static void pause() {
+    try {
+      Thread.sleep(RECONNECT_DELAY_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+
+import common.Json;
+import common.Metrics;
+import datastructures.MessageRecord;
+import datastructures.UserInfo;
+import datastructures.WsActionResponse;
+import datastructures.WsBusEvent;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * An event bus between nodes using LISTEN/NOTIFY of PostgreSQL, on the same database
+ * (and data source) as everything else. Events are published as JSON payloads of a
+ * notification; PostgreSQL delivers notifications to all listening sessions in the
+ * order they were committed, the publishing node included.
+ *
+ * One connection per node is held for listening, polled by a thread of its own.
+ * If the connection is lost it is reopened, events published meanwhile are lost
+ * (clients notice the gap in sequence numbers when they resume).
+ *
+ * A notification payload must be shorter than 8000 bytes. A larger event carrying a
+ * message (e.g. a long text) or a user (e.g. a profile change) is published as a reference
+ * instead, which each node loads from the database when delivering the event. An event
+ * concerning too many channels to fit is split into events for fewer channels, connections
+ * sharing channels of several of them then get the (idempotent) response more than once.
+ * Any other event that is too large is not delivered to any node (not even the publishing
+ * one, the nodes would drift apart), it is logged as an error and counted as
+ * "bus.events.oversized".
+ *
+ * References:
+ * https://www.postgresql.org/docs/current/sql-notify.html
+ * https://jdbc.postgresql.org/documentation/head/listennotify.html
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class PgEventBus implements EventBus {
+  private static final Logger log = LogManager.getLogger(PgEventBus.class);
+
+  private static final int MAX_PAYLOAD_SIZE = 7900;
+  private static final int POLL_TIMEOUT_MILLIS = 1000;
+  private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+  private final String channel;
+  private final List<Consumer<WsBusEvent>> handlers = new CopyOnWriteArrayList<>();
+  private final LongAdder referenced = Metrics.counter("bus.events.referenced");
+  private final LongAdder split = Metrics.counter("bus.events.split");
+  private final LongAdder oversized = Metrics.counter("bus.events.oversized");
+
+  /**
+   * Constructor, starts listening right away.
+   * @param channel Name of the notification channel
+   */
+  public PgEventBus(String channel) {
+    this.channel = channel;
+
+    var listener = new Thread(this::listen, "event-bus-listener");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  @Override
+  public void publish(WsBusEvent event) {
+    try {
+      var payload = Json.encode(event);
+      if (payload.length > MAX_PAYLOAD_SIZE) {
+        var reference = reference(event);
+        if (reference != null) {
+          event = reference;
+          payload = Json.encode(event);
+          referenced.increment();
+        }
+      }
+      if (payload.length > MAX_PAYLOAD_SIZE && event.channelIds != null && event.channelIds.size() > 1) {
+        var half = event.channelIds.size() / 2;
+        split.increment();
+        publish(copy(event, event.channelIds.subList(0, half), event.response));
+        publish(copy(event, event.channelIds.subList(half, event.channelIds.size()), event.response));
+        return;
+      }
+      if (payload.length > MAX_PAYLOAD_SIZE) {
+        log.error(String.format("Event %s of %s bytes is too large to be published, not delivered to any node", event.type, payload.length));
+        oversized.increment();
+        return;
+      }
+
+      var db = new Db();
+      db.executeQuery(RowMapper.scalar(Object.class), Statements.EVENT_NOTIFY, channel, new String(payload, StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      log.error(String.format("Could not publish event %s", event.type), e);
+    }
+  }
+
+  @Override
+  public void subscribe(Consumer<WsBusEvent> handler) {
+    handlers.add(handler);
+  }
+
+  /**
+   * Listen on notifications for as long as the application runs.
+   */
+  private void listen() {
+    while (true) {
+      try (Connection connection = new Db().open()) {
+        try (var statement = connection.createStatement()) {
+          statement.execute(String.format("listen \"%s\"", channel));
+        }
+        log.info(String.format("Listening on events of channel %s", channel));
+
+        var pgConnection = connection.unwrap(PGConnection.class);
+        while (true) {
+          var notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+          if (notifications == null) {
+            continue;
+          }
+          for (var notification : notifications) {
+            WsBusEvent event;
+            try {
+              event = Json.parse(notification.getParameter(), WsBusEvent.class);
+            } catch (IOException e) {
+              log.error(String.format("Could not parse event: %s", notification.getParameter()), e);
+              continue;
+            }
+            if (event.reference == null || resolve(event)) {
+              deliver(event);
+            }
+          }
+        }
+      } catch (Exception e) {
+        log.error(String.format("Lost listening connection of channel %s, reconnecting", channel), e);
+      }
+
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Create a reference to an event carrying a message or a user, without the message or user.
+   * @param event Event
+   * @return reference or null if the event carries neither
+   */
+  private static WsBusEvent reference(WsBusEvent event) {
+    if (event.response == null) {
+      return null;
+    }
+
+    var response = new WsActionResponse();
+    response.type = event.response.type;
+    var reference = copy(event, event.channelIds, response);
+
+    if (event.response.data instanceof MessageRecord) {
+      reference.reference = "message";
+      reference.messageId = MessageRecord.class.cast(event.response.data).id;
+      return reference;
+    }
+    if (event.response.data instanceof UserInfo && UserInfo.class.cast(event.response.data).id.equals(event.userId)) {
+      reference.reference = "user"; // The user concerned
+      return reference;
+    }
+    return null;
+  }
+
+  /**
+   * Copy an event.
+   * @param event Event
+   * @param channelIds Channels concerned
+   * @param response Response to be broadcasted
+   * @return copy
+   */
+  private static WsBusEvent copy(WsBusEvent event, List<String> channelIds, WsActionResponse response) {
+    var copy = new WsBusEvent();
+    copy.type = event.type;
+    copy.channelId = event.channelId;
+    copy.channelIds = channelIds;
+    copy.userId = event.userId;
+    copy.node = event.node;
+    copy.reference = event.reference;
+    copy.messageId = event.messageId;
+    copy.response = response;
+    return copy;
+  }
+
+  /**
+   * Load the message or user of a reference, as it is when the event is delivered.
+   * @param event Reference to an event carrying a message or user
+   * @return whether it was loaded, otherwise it has been removed meanwhile (or failed to load)
+   */
+  private boolean resolve(WsBusEvent event) {
+    try {
+      switch (event.reference) {
+        case "message": {
+          var message = ChannelDb.getMessage(event.messageId, event.channelId);
+          if (message == null) {
+            log.warn(String.format("Message %s of event %s has been removed, event is not delivered", event.messageId, event.type));
+            return false;
+          }
+          event.response.data = message;
+          return true;
+        }
+        case "user": {
+          var user = UserDb.getUser(event.userId);
+          if (user == null) {
+            log.warn(String.format("User %s of event %s has been removed, event is not delivered", event.userId, event.type));
+            return false;
+          }
+          event.response.data = new UserInfo(user);
+          return true;
+        }
+        default: {
+          log.warn(String.format("Unsupported reference %s of event %s", event.reference, event.type));
+          return false;
+        }
+      }
+    } catch (Exception e) {
+      log.error(String.format("Could not load %s of event %s", event.reference, event.type), e);
+      return false;
+    }
+  }
+
+  /**
+   * Deliver an event to the handlers.
+   * @param event Event
+   */
+  private void deliver(WsBusEvent event) {
+    for (var handler : handlers) {
+      try {
+        handler.accept(event);
+      } catch (Exception e) {
+        log.error(String.format("Could not handle event %s", event.type), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.Histogram;
+import common.Metrics;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * Instrumentation of the statements run by {@link Db}:
+ *
+ * - Tracing: the statement, its parameters and the statement merged with its parameters
+ *   are logged, only if debug logging is enabled for this class, otherwise nothing is
+ *   formatted at all.
+ * - Latency: the duration of each statement is recorded in a histogram per statement,
+ *   keyed by its normalized SQL (whitespace collapsed and literals replaced by "?"),
+ *   e.g. "db.query select * from users where id = ?". Normalization is done once per
+ *   distinct statement, at most DB_QUERY_METRICS_SIZE (default 256) statements are
+ *   tracked separately, any more are recorded as "db.query other".
+ * - Slow queries: statements slower than DB_SLOW_QUERY_MS (default 500) are logged
+ *   as a warning (without parameters, as these may be personal) and counted.
+ *
+ * Latencies and slow queries are disabled by DB_QUERY_METRICS=false.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class QueryTracer {
+  private static final Logger log = LogManager.getLogger(QueryTracer.class);
+
+  private static final boolean METRICS_ENABLED = !"false".equalsIgnoreCase(System.getProperty("DB_QUERY_METRICS"));
+  private static final int MAX_STATEMENTS = Integer.getInteger("DB_QUERY_METRICS_SIZE", 256);
+  private static final long SLOW_QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("DB_SLOW_QUERY_MS", 500));
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+\\b");
+
+  // Histograms by (not normalized) statement, to normalize each statement only once
+  private static final ConcurrentHashMap<String, Histogram> statements = new ConcurrentHashMap<>();
+  private static final Histogram other = Metrics.histogram("db.query other");
+  private static final LongAdder slow = Metrics.counter("db.slow");
+
+  /** Private constructor */
+  private QueryTracer() {
+    throw new InstantiationError("Forbidden instantiation");
+  }
+
+  /**
+   * Trace a statement before it is run, if tracing is enabled.
+   * @param query Statement to be run
+   * @param parameters Parameters used in statement
+   */
+  public static void trace(String query, Object[] parameters) {
+    if (!log.isDebugEnabled()) {
+      return;
+    }
+
+    var values = new StringBuilder();
+    var merged = new StringBuilder(query.length() + parameters.length * 16);
+    var parameterCount = 0;
+    for (int i = 0; i < query.length(); i++) {
+      var c = query.charAt(i);
+      if (c != '?') {
+        merged.append(c);
+        continue;
+      }
+      // Parameters missing are merged as null, for easier locate errors in faulty queries
+      merged.append(parameterCount < parameters.length ? parameters[parameterCount] : null);
+      parameterCount++;
+    }
+    for (int i = 0; i < parameters.length; i++) {
+      values.append(i == 0 ? "" : ", ").append(parameters[i]);
+    }
+
+    log.debug(String.format("SQL -> STATEMENT: %s", query));
+    log.debug(String.format("SQL -> PARAMETERS: %s", values));
+    log.debug(String.format("Parameter count: %s", parameterCount));
+    log.debug(String.format("SQL -> PROCESSED: %s", merged));
+  }
+
+  /**
+   * Get start time of a statement.
+   * @return nano time, 0 if latencies are disabled
+   */
+  public static long start() {
+    return METRICS_ENABLED ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Record the latency of a statement that has been run (successful or not).
+   * @param query Statement that has been run
+   * @param start Start time from {@link #start()}
+   */
+  public static void end(String query, long start) {
+    if (!METRICS_ENABLED) {
+      return;
+    }
+
+    var elapsed = System.nanoTime() - start;
+    histogram(query).record(elapsed);
+
+    if (elapsed > SLOW_QUERY_NANOS) {
+      slow.increment();
+      log.warn(String.format("Slow query (%s ms): %s", TimeUnit.NANOSECONDS.toMillis(elapsed), normalize(query)));
+    }
+  }
+
+  /**
+   * Get histogram of a statement.
+   * @param query Statement
+   * @return histogram
+   */
+  private static Histogram histogram(String query) {
+    var histogram = statements.get(query);
+    if (histogram != null) {
+      return histogram;
+    }
+    if (statements.size() >= MAX_STATEMENTS) {
+      return other; // Statements built dynamically should not fill the metrics
+    }
+    return statements.computeIfAbsent(query, k -> Metrics.histogram("db.query " + normalize(k)));
+  }
+
+  /**
+   * Normalize a statement, so that statements only differing in formatting or literals are the same.
+   * @param query Statement
+   * @return normalized statement
+   */
+  static String normalize(String query) {
+    var collapsed = WHITESPACE.matcher(query.trim()).replaceAll(" ");
+    return LITERALS.matcher(collapsed).replaceAll("?");
+  }
+}
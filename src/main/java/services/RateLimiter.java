@@ -0,0 +1,101 @@
+package services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * An in-memory rate limiter keyed by user ID, shared by the websocket actions and the
+ * REST api so that one misbehaving client can not saturate the database pool.
+ *
+ * Each user has a token bucket refilled at a steady rate up to a burst size, a request
+ * takes as many tokens as it costs. The bucket is kept as a single number, the time at
+ * which it would be full again (a virtual scheduling, GCRA), and is updated with
+ * compare-and-set, so nothing is locked. Buckets that has been full for a while are
+ * swept away, a full bucket is the same as no bucket at all.
+ *
+ * References:
+ * https://en.wikipedia.org/wiki/Token_bucket
+ * https://en.wikipedia.org/wiki/Generic_cell_rate_algorithm
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class RateLimiter {
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  private static final RateLimiter instance = new RateLimiter(
+    Double.parseDouble(System.getProperty("RATE_LIMIT_PER_SECOND", "10")),
+    Integer.getInteger("RATE_LIMIT_BURST", 50));
+
+  private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+  private final long intervalNanos; // Nanoseconds to refill one token
+  private final long burstNanos; // Nanoseconds to refill a whole bucket
+
+  /**
+   * Constructor.
+   * @param rate Tokens refilled per second
+   * @param burst Max amount of tokens in a bucket
+   */
+  public RateLimiter(double rate, int burst) {
+    this.intervalNanos = (long)(TimeUnit.SECONDS.toNanos(1) / rate);
+    this.burstNanos = intervalNanos * burst;
+  }
+
+  /* Get singleton instance, shared by websocket and REST */
+  public static RateLimiter getInstance() {
+    return instance;
+  }
+
+  /**
+   * Take tokens from the bucket of a user, if it has enough of them.
+   * @param userId ID of the user
+   * @param cost Amount of tokens
+   * @return whether the tokens were taken (the request is allowed)
+   */
+  public boolean tryAcquire(String userId, int cost) {
+    var now = System.nanoTime();
+    sweep(now);
+
+    var bucket = buckets.computeIfAbsent(userId, k -> new AtomicLong(now));
+    while (true) {
+      var full = bucket.get(); // Time at which the bucket is full
+      var next = Math.max(full, now) + cost * intervalNanos;
+      if (next - now > burstNanos) {
+        return false; // Not enough tokens
+      }
+      if (bucket.compareAndSet(full, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Get amount of seconds until the bucket of a user has enough tokens for a cost.
+   * @param userId ID of the user
+   * @param cost Amount of tokens
+   * @return seconds, 0 if it has enough tokens already
+   */
+  public long getRetryAfter(String userId, int cost) {
+    var bucket = buckets.get(userId);
+    if (bucket == null) {
+      return 0;
+    }
+    var wait = bucket.get() + cost * intervalNanos - burstNanos - System.nanoTime();
+    return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toSeconds(wait) + 1;
+  }
+
+  /**
+   * Remove buckets that are full, at most once per sweep interval.
+   * @param now Current nano time
+   */
+  private void sweep(long now) {
+    var last = lastSweep.get();
+    if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+  }
+}
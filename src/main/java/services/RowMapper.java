@@ -0,0 +1,54 @@
+package services;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * Maps the rows of a query result into typed records. A mapper is compiled once
+ * for each result set, which is when the indexes of the columns it needs are
+ * resolved, the compiled row then reads the columns of each row by index straight
+ * into a record (no metadata lookups or maps per row).
+ *
+ * Example:
+ *   RowMapper<Item, RuntimeException> mapper = rs -> {
+ *     var id = rs.findColumn("id");
+ *     return row -> new Item(row.getString(id));
+ *   };
+ *
+ * @param <T> Type of the records
+ * @param <E> Exception thrown when a row can not be mapped (besides SQLException),
+ *            RuntimeException if none
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+@FunctionalInterface
+public interface RowMapper<T, E extends Exception> {
+  /**
+   * Compile mapper for a result set, resolving the indexes of its columns.
+   * @param rs Result set, before the first row
+   * @return row mapper for the result set
+   */
+  Row<T, E> compile(ResultSet rs) throws SQLException;
+
+  /** A mapper compiled for a result set. */
+  @FunctionalInterface
+  interface Row<T, E extends Exception> {
+    /**
+     * Map current row of a result set.
+     * @param rs Result set, at the row to be mapped
+     * @return record
+     */
+    T map(ResultSet rs) throws SQLException, ReflectiveOperationException, E;
+  }
+
+  /**
+   * Get a mapper of the first column of each row, e.g. for "returning" clauses.
+   * @param clazz Class of the column value
+   * @return mapper
+   */
+  static <T> RowMapper<T, RuntimeException> scalar(Class<T> clazz) {
+    return rs -> row -> clazz.cast(row.getObject(1));
+  }
+}
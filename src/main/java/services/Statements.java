@@ -0,0 +1,86 @@
+package services;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units
+ *
+ * Catalog of the fixed statements run by the services. These are run as server-side
+ * prepared statements from their first execution (see {@link Db}), so PostgreSQL
+ * parses and plans each of them once per connection instead of on every call.
+ * Together with the statement pooling of the connection pool (see context.xml),
+ * the prepared statements are also reused between calls on the same connection.
+ *
+ * Statements built at runtime (e.g. updating a user profile) are not in the catalog
+ * and are prepared as usual by the driver.
+ *
+ * References:
+ * https://jdbc.postgresql.org/documentation/head/server-prepare.html
+ * https://commons.apache.org/proper/commons-dbcp/configuration.html
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public enum Statements {
+  // Channels, with the amount of subscriptions
+  CHANNEL_INSERT(
+    "insert into channels (id, name, description, created, creator_id) " +
+    "values (?, ?, ?, ?, ?)"),
+  CHANNEL_SELECT(
+    "select c.*, count(subscr.channel_id) as subscriptions " +
+    "from channels c " +
+    "left join (select channel_id from subscriptions) as subscr on c.id = subscr.channel_id " +
+    "where c.id = ? " +
+    "group by c.id, c.description, c.created, subscr.channel_id"),
+  CHANNELS_SELECT(
+    "select c.*, count(subscr.channel_id) as subscriptions " +
+    "from channels c " +
+    "left join (select channel_id from subscriptions) as subscr on c.id = subscr.channel_id " +
+    "group by c.id, c.description, c.created, subscr.channel_id"),
+  CHANNELS_SELECT_BY_USER(
+    "select c.*, count(subscr.channel_id) as subscriptions " +
+    "from subscriptions s " +
+    "join channels c on c.id = s.channel_id and s.user_id = ? " +
+    "join (select channel_id from subscriptions) as subscr on c.id = subscr.channel_id " +
+    "group by c.id, c.description, c.created, subscr.channel_id"),
+  CHANNEL_DELETE("delete from channels where id = ?"),
+
+  // Subscriptions
+  SUBSCRIPTION_INSERT("insert into subscriptions (user_id, channel_id) values (?, ?)"),
+  SUBSCRIPTION_DELETE("delete from subscriptions where user_id = ? and channel_id = ?"),
+  SUBSCRIPTIONS_DELETE_BY_CHANNEL("delete from subscriptions where channel_id = ?"),
+
+  // Messages
+  MESSAGE_INSERT("insert into messages (id, channel_id, user_id, created, data) values (?, ?, ?, ?, ?)"), // Batched, see MessageWriter
+  MESSAGE_SELECT("select * from messages where id = ? and channel_id = ?"),
+  MESSAGE_UPDATE("update messages set data = ? where id = ? and channel_id = ?"),
+  MESSAGE_DELETE("delete from messages where id = ? and channel_id = ? and user_id = ?"),
+  MESSAGES_DELETE_BY_CHANNEL("delete from messages where channel_id = ?"),
+  MESSAGES_SELECT_LATEST("select * from messages where channel_id = ? order by created desc limit ?"),
+  MESSAGES_SELECT_BEFORE("select * from messages where channel_id = ? and idx < ? order by created desc limit ?"),
+
+  // Users
+  USER_INSERT(
+    "insert into users (id, email, password, forename, surname) " +
+    "values (?, ?, ?, ?, ?)"),
+  USER_SELECT("select * from users where id = ?"),
+  USER_SELECT_BY_EMAIL("select * from users where email = ?"),
+
+  // Events published to other nodes
+  EVENT_NOTIFY("select pg_notify(?, ?)");
+
+  private final String sql;
+
+  /**
+   * Constructor.
+   * @param sql SQL of the statement
+   */
+  private Statements(String sql) {
+    this.sql = sql;
+  }
+
+  /**
+   * Get SQL of the statement.
+   * @return sql
+   */
+  public String getSql() {
+    return sql;
+  }
+}
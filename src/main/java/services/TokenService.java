@@ -5,6 +5,7 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -37,6 +38,10 @@ public class TokenService {
 
   private byte[] encodedKey;
 
+  // Claims of tokens already parsed and validated, so that a reconnecting client is not parsed again
+  private static final int CLAIMS_CACHE_SIZE = Integer.getInteger("JWT_CLAIMS_CACHE_SIZE", 10000);
+  private final ConcurrentHashMap<String, Claims> claimsCache = new ConcurrentHashMap<>();
+
   private TokenService() {
     // Only allow instantiation private
   }
@@ -82,6 +87,38 @@ public class TokenService {
       .parseClaimsJws(claimsJws.trim()).getBody();
   }
 
+  /**
+   * Parses and validates a JWT token like {@link #parse(String)}, but the claims of a token
+   * already parsed are reused for as long as it has not expired. The cache is bounded,
+   * expired tokens are removed first and if that is not enough it is emptied.
+   *
+   * @param jwt A JWT token string (either prefixed with bearer or not)
+   * @return jwt claims
+   */
+  public Claims parseCached(String jwt) throws NoSuchAlgorithmException {
+    if (jwt == null) {
+      return null;
+    }
+
+    var now = System.currentTimeMillis();
+    var cached = claimsCache.get(jwt);
+    if (cached != null && cached.getExpiration().getTime() > now) {
+      return cached;
+    }
+
+    var claims = parse(jwt); // Throws if expired or invalid
+    if (claims != null && claims.getExpiration() != null) {
+      if (claimsCache.size() >= CLAIMS_CACHE_SIZE) {
+        claimsCache.values().removeIf(c -> c.getExpiration().getTime() <= now);
+        if (claimsCache.size() >= CLAIMS_CACHE_SIZE) {
+          claimsCache.clear();
+        }
+      }
+      claimsCache.put(jwt, claims);
+    }
+    return claims;
+  }
+
   /**
    * Creates and sign a JSON web token with an encoded key.
    * TODO: include a refresh token
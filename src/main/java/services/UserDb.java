@@ -17,10 +17,6 @@ public class UserDb {
 
   public static String createUser(UserRegistration registration)
   throws ReflectiveOperationException, SQLException, ConstraintException, GeneralSecurityException {
-    var query =
-      "insert into users (id, email, password, forename, surname) " + 
-      "values (?, ?, ?, ?, ?)";
-
     var secretKeyId = System.getProperty("PASSWORD_SECRET_KEY_ID");
     var encryptedPassword = Crypto.encrypt(secretKeyId, registration.password);
 
@@ -34,7 +30,7 @@ public class UserDb {
 
     try {
       var db = new Db();
-      return DbUtils.updateWithID(db, query, parameters);
+      return DbUtils.updateWithID(db, Statements.USER_INSERT, parameters);
     } catch (ConstraintException e) {
       var constraint = e.inheritance.getConstraint();
 
@@ -71,18 +67,10 @@ public class UserDb {
 
   public static UserRecord getUser(String id)
   throws ReflectiveOperationException, SQLException, GeneralSecurityException {
-    var query = new StringBuilder("select * from users where id = ?").toString();
-
     var db = new Db();
-    var records = db.executeQuery(query, id);
-
-    var firstRecord = records.stream().findFirst();
-    if (!firstRecord.isPresent()) {
-      return null; // No user found
-    }
+    var records = db.executeQuery(UserRecord.MAPPER, Statements.USER_SELECT, id);
 
-    var record = firstRecord.get();
-    return new UserRecord(record);
+    return records.isEmpty() ? null : records.get(0); // Null if no user found
   }
 
   /**
@@ -94,15 +82,8 @@ public class UserDb {
   throws ReflectiveOperationException, SQLException, GeneralSecurityException {
     var sql = new Db();
 
-    var query = new StringBuilder("select * from users where email = ?").toString();
-    var records = sql.executeQuery(query, email);
-
-    var firstRecord = records.stream().findFirst();
-    if (!firstRecord.isPresent()) {
-      return null; // No user found
-    }
+    var records = sql.executeQuery(UserRecord.MAPPER, Statements.USER_SELECT_BY_EMAIL, email);
 
-    var record = firstRecord.get();
-    return new UserRecord(record);
+    return records.isEmpty() ? null : records.get(0); // Null if no user found
   }
 }
@@ -0,0 +1,137 @@
+package websocket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Dispatches actions to a pool of worker threads, off the websocket threads of the
+ * container (actions do blocking database work).
+ *
+ * Each key (a channel) has a mailbox of its own, tasks in the same mailbox are run
+ * one at a time in the order they were dispatched, so messages within a channel stay
+ * ordered, while different channels are processed in parallel. A mailbox only exists
+ * while it has tasks, and yields its worker after a batch of tasks so a busy channel
+ * can not starve the others.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class ActionDispatcher {
+  private static final Logger log = LogManager.getLogger(ActionDispatcher.class);
+
+  private static final int BATCH_SIZE = 16;
+
+  private final ExecutorService workers;
+  private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final int capacity;
+
+  /**
+   * Tasks of a key, only accessed while holding the lock of its map entry (compute).
+   */
+  private static class Mailbox {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean scheduled;
+  }
+
+  /**
+   * Constructor.
+   * @param threads Amount of worker threads
+   * @param capacity Max amount of tasks waiting to be run
+   */
+  public ActionDispatcher(int threads, int capacity) {
+    this.capacity = capacity;
+
+    var threadCount = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+      var thread = new Thread(runnable, "action-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Dispatch a task to the mailbox of a key.
+   * @param key Key (channel) tasks are ordered by
+   * @param task Task
+   * @return false if rejected as there are too many tasks waiting
+   */
+  public boolean dispatch(String key, Runnable task) {
+    if (pending.incrementAndGet() > capacity) {
+      pending.decrementAndGet();
+      log.warn(String.format("Rejected task for %s, %s tasks are waiting", key, capacity));
+      return false;
+    }
+
+    mailboxes.compute(key, (k, mailbox) -> {
+      if (mailbox == null) {
+        mailbox = new Mailbox();
+      }
+      mailbox.tasks.add(task);
+
+      if (!mailbox.scheduled) {
+        mailbox.scheduled = true;
+        var scheduled = mailbox;
+        workers.execute(() -> run(key, scheduled));
+      }
+      return mailbox;
+    });
+    return true;
+  }
+
+  /**
+   * Get amount of tasks waiting to be run.
+   * @return amount of tasks
+   */
+  public int getPending() {
+    return pending.get();
+  }
+
+  /**
+   * Run a batch of tasks of a mailbox, then yield the worker.
+   * @param key Key of mailbox
+   * @param mailbox Mailbox
+   */
+  private void run(String key, Mailbox mailbox) {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      var task = poll(key, mailbox);
+      if (task == null) {
+        return; // Mailbox is empty and has been removed
+      }
+
+      pending.decrementAndGet();
+      try {
+        task.run();
+      } catch (Exception e) {
+        log.error(String.format("Task for %s failed", key), e);
+      }
+    }
+    workers.execute(() -> run(key, mailbox));
+  }
+
+  /**
+   * Take next task of a mailbox, the mailbox is removed when empty.
+   * @param key Key of mailbox
+   * @param mailbox Mailbox
+   * @return next task or null if empty
+   */
+  private Runnable poll(String key, Mailbox mailbox) {
+    var task = new Runnable[1];
+    mailboxes.computeIfPresent(key, (k, current) -> {
+      if (current != mailbox) {
+        return current;
+      }
+      task[0] = current.tasks.poll();
+      return task[0] == null ? null : current;
+    });
+    return task[0];
+  }
+}
@@ -0,0 +1,113 @@
+package websocket;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import websocket.core.WsFrame;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Coalesces the events of busy channels. Each event on a quiet channel is sent as a
+ * frame of its own, but once the event rate of a channel crosses a threshold its events
+ * are held back on each connection for a short window and then sent together as one
+ * frame containing an array of responses. A client of a busy channel then receives a
+ * few larger frames instead of thousands of tiny ones.
+ *
+ * The rate is counted per second, a channel is busy while either the current or the
+ * previous second has reached the threshold.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class BroadcastCoalescer {
+  private static final Logger log = LogManager.getLogger(BroadcastCoalescer.class);
+
+  private final ConcurrentHashMap<String, Rate> rates = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService flusher;
+  private final long windowMillis;
+  private final int threshold;
+  private final int maxBatch;
+
+  /**
+   * Event rate of a channel, guarded by itself.
+   */
+  private static class Rate {
+    private long second;
+    private int current;
+    private int previous;
+  }
+
+  /**
+   * Constructor.
+   * @param windowMillis Milliseconds events are held back on a connection, 0 disables coalescing
+   * @param threshold Events per second at which a channel is considered busy
+   * @param maxBatch Max amount of events in a batch before it is sent right away
+   */
+  public BroadcastCoalescer(long windowMillis, int threshold, int maxBatch) {
+    this.windowMillis = windowMillis;
+    this.threshold = threshold;
+    this.maxBatch = maxBatch;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "broadcast-coalescer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Count an event on a channel.
+   * @param channelId Channel ID
+   * @return whether the channel is busy and its events should be coalesced
+   */
+  public boolean record(String channelId) {
+    if (windowMillis <= 0) {
+      return false;
+    }
+
+    var rate = rates.computeIfAbsent(channelId, k -> new Rate());
+    var second = System.currentTimeMillis() / 1000;
+    synchronized (rate) {
+      if (rate.second != second) {
+        var wasBusy = rate.current >= threshold || rate.previous >= threshold;
+        rate.previous = rate.second == second - 1 ? rate.current : 0;
+        rate.current = 0;
+        rate.second = second;
+
+        var isBusy = rate.previous >= threshold;
+        if (wasBusy != isBusy) {
+          log.info(String.format("Channel %s is %s", channelId, isBusy ? "busy, coalescing events" : "no longer busy"));
+        }
+      }
+      rate.current++;
+      return rate.current >= threshold || rate.previous >= threshold;
+    }
+  }
+
+  /**
+   * Send a frame to a connection within a batch, the batch is sent when the window
+   * has passed or it is full.
+   * @param connection Websocket connection
+   * @param frame Encoded response
+   */
+  public void send(Connection connection, WsFrame frame) {
+    var batched = connection.batch(frame);
+    if (batched == 1) { // Batch started
+      flusher.schedule(connection::flush, windowMillis, TimeUnit.MILLISECONDS);
+    } else if (batched >= maxBatch) {
+      connection.flush();
+    }
+  }
+
+  /**
+   * Forget rate of a (deleted) channel.
+   * @param channelId Channel ID
+   */
+  public void remove(String channelId) {
+    rates.remove(channelId);
+  }
+}
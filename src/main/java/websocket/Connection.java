@@ -1,12 +1,30 @@
 package websocket;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import io.jsonwebtoken.Claims;
-import websocket.core.WsRequestDataContext;
+import websocket.core.ActionParser;
+import websocket.core.BufferPool;
+import websocket.core.FrameAssembler;
+import websocket.core.WsCodec;
+import websocket.core.WsConfiguration;
+import websocket.core.WsFrame;
+import websocket.core.WsUtils;
 
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
@@ -18,17 +36,42 @@ import websocket.core.WsRequestDataContext;
  * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
  */
 public class Connection {
+  private static final Logger log = LogManager.getLogger(Connection.class);
+
+  // Weight of the latest send in the average send latency
+  private static final double LATENCY_WEIGHT = 0.2;
+
   private Session session;
   private Map<String, Object> properties;
 
+  private final Queue<WsFrame> outbound = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger outboundSize = new AtomicInteger();
+  private final AtomicLong outboundBytes = new AtomicLong();
+  private final AtomicBoolean sending = new AtomicBoolean();
+
+  // Accounting of how far behind the connection is
+  private final SlowConsumerPolicy policy = SlowConsumerPolicy.DEFAULT;
+  private volatile long sendStarted; // Nano time the current send started, 0 if none
+  private volatile long sendLatency; // Average nanoseconds for a send to complete
+  private volatile boolean resyncing; // Queue has been replaced by a resync marker not yet sent
+
+  // Frames held back to be sent together (see BroadcastCoalescer), guarded by the connection
+  private List<WsFrame> batch;
+
+  // Encoding negotiated for the connection, and parser of messages streamed in chunks from the client
+  private final WsCodec codec;
+  private final ActionParser parser;
+
   /**
    * Constructor.
-   * @param session Websocket session object
-   * @param context Additional data regarding the connection
+   * @param session Websocket session object, with additional data regarding the connection
+   *                (set as user properties during the handshake)
    */
-  public Connection (Session session, WsRequestDataContext context) {
+  public Connection (Session session) {
     this.session = session;
-    this.properties = new HashMap<>(context.getProperties());
+    this.properties = session.getUserProperties();
+    this.codec = WsCodec.of(session.getNegotiatedSubprotocol());
+    this.parser = new ActionParser(FrameAssembler.MAX_MESSAGE_SIZE, BufferPool.getInstance(), codec.getFactory());
   }
 
   /**
@@ -47,6 +90,31 @@ public class Connection {
     return this.session.getId();
   }
 
+  /**
+   * Get encoding of messages sent and received.
+   * @return codec
+   */
+  public WsCodec getCodec() {
+    return this.codec;
+  }
+
+  /**
+   * Get whether messages are compressed (permessage-deflate has been negotiated).
+   * @return whether compressed
+   */
+  public boolean isCompressed() {
+    return this.session.getNegotiatedExtensions().stream()
+      .anyMatch(extension -> WsConfiguration.DEFLATE.equals(extension.getName()));
+  }
+
+  /**
+   * Get parser of incoming messages streamed in chunks.
+   * @return parser
+   */
+  public ActionParser getParser() {
+    return this.parser;
+  }
+
   /**
    * Get properties containing additional properties suchs as
    * claims with credentials and user details as well as remote host, address and port.
@@ -119,6 +187,233 @@ public class Connection {
     return getClaims().getExpiration().getTime() >= System.currentTimeMillis();
   }
 
+  /**
+   * Enqueue a frame to be sent asynchronously, returns immediately.
+   * If the client is not keeping up the {@link SlowConsumerPolicy} is applied, which
+   * may drop the frame, replace the queue with a resync marker or close the session.
+   * @param frame Pre-encoded frame (shared between connections)
+   * @return whether the frame was enqueued
+   */
+  public boolean send(WsFrame frame) {
+    boolean queued;
+    synchronized (this) { // Any frames held back must be sent first
+      queued = offer(takeBatch()) && offer(frame);
+    }
+    return sent(queued);
+  }
+
+  /**
+   * Hold back a frame to be sent together with other frames as one frame.
+   * @param frame Pre-encoded frame (shared between connections)
+   * @return amount of frames held back, 1 if a new batch has been started
+   */
+  public synchronized int batch(WsFrame frame) {
+    if (batch == null) {
+      batch = new ArrayList<>();
+    }
+    batch.add(frame);
+    return batch.size();
+  }
+
+  /**
+   * Send any frames held back, joined into one frame.
+   */
+  public void flush() {
+    boolean queued;
+    synchronized (this) {
+      queued = offer(takeBatch());
+    }
+    sent(queued);
+  }
+
+  /**
+   * Take the frames held back, joined into one frame.
+   * @return joined frame or null if there are none
+   */
+  private WsFrame takeBatch() {
+    if (batch == null) {
+      return null;
+    }
+    var frames = batch;
+    batch = null;
+    return frames.size() == 1 ? frames.get(0) : WsFrame.join(frames);
+  }
+
+  /**
+   * Add a frame to the outbound queue, applying the slow consumer policy if the
+   * connection is not keeping up. Called while holding the connection.
+   * @param frame Frame or null for nothing
+   * @return whether the frame was handled, otherwise the session must be closed
+   */
+  private boolean offer(WsFrame frame) {
+    if (frame == null) {
+      return true;
+    }
+    if (resyncing) { // Client reloads its state anyway
+      policy.onDropped();
+      return true;
+    }
+
+    var started = sendStarted;
+    var stalled = started == 0 ? 0 : System.nanoTime() - started;
+    var frames = outboundSize.get() + 1;
+    var bytes = outboundBytes.get() + frame.size();
+    if (!policy.isSlow(frames, bytes, sendLatency, stalled)) {
+      enqueue(frame);
+      return true;
+    }
+
+    switch (policy.getAction()) {
+      case SlowConsumerPolicy.DROP: {
+        if (frame.isSequenced()) { // Client is able to replay it
+          policy.onDropped();
+          return true;
+        }
+        if (frames > policy.getMaxFrames()) {
+          return false;
+        }
+        enqueue(frame);
+        return true;
+      }
+      case SlowConsumerPolicy.RESYNC: {
+        policy.onResynced(this);
+        discard();
+        enqueue(SlowConsumerPolicy.RESYNC_FRAME);
+        resyncing = true;
+        return true;
+      }
+      default: {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Add a frame to the outbound queue.
+   * @param frame Frame
+   */
+  private void enqueue(WsFrame frame) {
+    outboundSize.incrementAndGet();
+    outboundBytes.addAndGet(frame.size());
+    outbound.add(frame);
+  }
+
+  /**
+   * Start sending what has been enqueued, or close the session if the client is not keeping up.
+   * @param queued Whether the frames were handled
+   * @return whether the frames were handled
+   */
+  private boolean sent(boolean queued) {
+    if (!queued) {
+      policy.onClosed(this);
+      discard();
+      WsUtils.closeSession(session, CloseReason.CloseCodes.TRY_AGAIN_LATER, "Slow consumer");
+      return false;
+    }
+    drain();
+    return true;
+  }
+
+  /**
+   * Get amount of messages waiting in the outbound queue.
+   * @return queued messages
+   */
+  public int getOutboundSize() {
+    return outboundSize.get();
+  }
+
+  /**
+   * Get amount of bytes waiting in the outbound queue.
+   * @return queued bytes
+   */
+  public long getOutboundBytes() {
+    return outboundBytes.get();
+  }
+
+  /**
+   * Get average time for a send to complete.
+   * @return latency in milliseconds
+   */
+  public long getSendLatency() {
+    return sendLatency / 1000000;
+  }
+
+  /**
+   * Send next message in the outbound queue unless a send is already in progress,
+   * the asynchronous remote endpoint only allows one outstanding message at a time.
+   */
+  private void drain() {
+    while (!outbound.isEmpty() && sending.compareAndSet(false, true)) {
+      var frame = poll();
+      if (frame == null) {
+        sending.set(false); // Raced with another drain, check the queue again
+        continue;
+      }
+
+      try {
+        sendStarted = System.nanoTime();
+        if (codec.isBinary()) {
+          session.getAsyncRemote().sendBinary(frame.getBuffer(codec), this::onSent);
+        } else {
+          session.getAsyncRemote().sendText(frame.getText(), this::onSent);
+        }
+      } catch (IOException e) { // Should not happen, responses only contain serializable data
+        log.error(String.format("Could not encode frame for connection: %s", getId()), e);
+        sendStarted = 0;
+        sending.set(false);
+        continue;
+      } catch (IllegalStateException e) { // Session has been closed
+        discard();
+      }
+      return;
+    }
+  }
+
+  /**
+   * Take next frame from the outbound queue, consistent with the accounting of the queue.
+   * @return frame or null if none
+   */
+  private synchronized WsFrame poll() {
+    var frame = outbound.poll();
+    if (frame != null) {
+      outboundSize.decrementAndGet();
+      outboundBytes.addAndGet(-frame.size());
+      if (frame == SlowConsumerPolicy.RESYNC_FRAME) {
+        resyncing = false; // Anything queued from now on follows the marker
+      }
+    }
+    return frame;
+  }
+
+  /**
+   * Completion of an asynchronous send, continue with next message in the queue.
+   * @param result Result of the send
+   */
+  private void onSent(SendResult result) {
+    var latency = System.nanoTime() - sendStarted;
+    sendLatency = sendLatency == 0 ? latency : (long)(sendLatency * (1 - LATENCY_WEIGHT) + latency * LATENCY_WEIGHT);
+    sendStarted = 0;
+
+    if (!result.isOK()) { // Close any problematic connections, they may also already be closed
+      log.warn(String.format("Could not send to connection: %s", getId()), result.getException());
+      discard();
+      WsUtils.closeSession(session, CloseReason.CloseCodes.UNEXPECTED_CONDITION);
+      return;
+    }
+    sending.set(false);
+    drain();
+  }
+
+  /**
+   * Throw away anything queued, nothing more will be sent on this connection. Held like
+   * {@link #offer(WsFrame)} and {@link #poll()}, to keep the accounting of the queue consistent.
+   */
+  private synchronized void discard() {
+    outbound.clear();
+    outboundSize.set(0);
+    outboundBytes.set(0);
+  }
+
   /**
    * Get casted property value.
    * @param key Parameter key
@@ -0,0 +1,67 @@
+package websocket;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import datastructures.ImageData;
+import services.ImageStore;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * A bounded pipeline storing images off the websocket threads. Storing an image
+ * involves calculating a checksum, writing it locally and uploading it to S3,
+ * which must not block the processing of incoming messages.
+ *
+ * When the pipeline is full the image is stored by the submitting thread instead,
+ * which slows down the producing client rather than queueing images without bound.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class ImagePipeline {
+  private static final Logger log = LogManager.getLogger(ImagePipeline.class);
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Constructor.
+   * @param threads Amount of worker threads storing images
+   * @param capacity Max amount of images waiting to be stored
+   */
+  public ImagePipeline(int threads, int capacity) {
+    var threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(capacity),
+      runnable -> {
+        var thread = new Thread(runnable, "image-pipeline-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      },
+      new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Store an image asynchronously.
+   * @param image Image to be stored
+   * @return future completed with the URL of the stored image
+   */
+  public CompletableFuture<String> store(ImageData image) {
+    log.debug(String.format("Images waiting to be stored: %s", executor.getQueue().size()));
+
+    var future = new CompletableFuture<String>();
+    executor.execute(() -> {
+      try {
+        future.complete(ImageStore.store(image));
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+}
@@ -0,0 +1,250 @@
+package websocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import common.Id;
+import common.Metrics;
+import datastructures.WsActionResponse;
+import websocket.core.WsFrame;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Journal of the events broadcasted on each channel. Every event is stamped with
+ * a sequence number that is monotonic within its channel and kept (pre-encoded)
+ * in a bounded ring, so a client that lost its connection for a moment can be sent
+ * exactly what it missed instead of reloading everything from the database.
+ *
+ * Sequence numbers only live in memory, they are scoped by an epoch that changes
+ * whenever the server is restarted. A client resuming with another epoch, or one
+ * that has fallen further behind than the ring reaches, has to resynchronize.
+ *
+ * The journals have a memory budget, journals of channels that has been idle for
+ * a while are evicted, and if the budget is still exceeded the journals used the least
+ * recently are evicted. A journal created after an eviction continues from a sequence
+ * number above anything issued before (in the epoch), so a client that missed events
+ * of an evicted journal is always told to resynchronize, never replayed the wrong events.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class ReplayLog {
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  private final ConcurrentHashMap<String, Journal> journals = new ConcurrentHashMap<>();
+  private final String epoch = Id.generate();
+  private final int size;
+  private final long budget;
+  private final long idleNanos;
+
+  private final AtomicLong bytes = new AtomicLong(); // Bytes of the frames of all journals
+  private final AtomicLong issued = new AtomicLong(); // Sequence numbers issued on all channels
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+  private final ReentrantLock evicting = new ReentrantLock();
+  private final LongAdder evicted = Metrics.counter("ws.replay.evicted");
+
+  /**
+   * Constructor.
+   * @param size Amount of events kept per channel
+   * @param budget Max amount of bytes kept for all channels
+   * @param idleSeconds Seconds without any events or replays before a journal is evicted
+   */
+  public ReplayLog(int size, long budget, long idleSeconds) {
+    this.size = size;
+    this.budget = budget;
+    this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+    Metrics.gauge("ws.replay.bytes", bytes::get);
+    Metrics.gauge("ws.replay.channels", journals::size);
+  }
+
+  /**
+   * Get epoch of the sequence numbers.
+   * @return epoch
+   */
+  public String getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Stamp a response with the next sequence number of the channel, encode and journal it.
+   * The frame is handed to the consumer while the journal is still held, so frames reach
+   * the outbound queues in the order of their sequence numbers.
+   * @param channelId Channel ID
+   * @param response Response to be stamped
+   * @param consumer Consumer sending the stamped frame
+   */
+  public void append(String channelId, WsActionResponse response, Consumer<WsFrame> consumer) throws IOException {
+    while (true) {
+      var journal = journals.computeIfAbsent(channelId, k -> new Journal(channelId, size, issued.get()));
+      synchronized (journal) {
+        if (journal.evicted) {
+          continue; // Evicted meanwhile, continue with a new journal
+        }
+
+        response.channelId = channelId;
+        response.seq = journal.last + 1;
+        response.epoch = epoch;
+        issued.incrementAndGet();
+
+        var frame = WsFrame.of(response);
+        bytes.addAndGet(journal.add(frame));
+        consumer.accept(frame);
+      }
+      break;
+    }
+    evict();
+  }
+
+  /**
+   * Replay the events of a channel following a sequence number.
+   * @param channelId Channel ID
+   * @param epoch Epoch the sequence number belongs to
+   * @param since Last sequence number seen
+   * @param consumer Consumer sending the replayed frames
+   * @return whether the gap could be filled, otherwise nothing is replayed
+   */
+  public boolean replay(String channelId, String epoch, long since, Consumer<WsFrame> consumer) {
+    if (!this.epoch.equals(epoch)) {
+      return false;
+    }
+
+    var journal = journals.get(channelId);
+    if (journal == null) {
+      return false; // Nothing journaled, or evicted
+    }
+
+    synchronized (journal) {
+      if (journal.evicted || since > journal.last || since < journal.first() - 1) {
+        return false;
+      }
+      journal.lastUsed = System.nanoTime();
+      for (var seq = since + 1; seq <= journal.last; seq++) {
+        consumer.accept(journal.get(seq));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove journal of a (deleted) channel.
+   * @param channelId Channel ID
+   */
+  public void remove(String channelId) {
+    var journal = journals.get(channelId);
+    if (journal != null) {
+      evict(journal);
+    }
+  }
+
+  /**
+   * Evict idle journals, at most once per sweep interval, and the least recently used
+   * journals while over budget. Only one thread evicts at a time.
+   */
+  private void evict() {
+    var now = System.nanoTime();
+    var last = lastSweep.get();
+    var sweep = now - last >= SWEEP_INTERVAL_NANOS;
+    if ((!sweep && bytes.get() <= budget) || !evicting.tryLock()) {
+      return;
+    }
+
+    try {
+      if (sweep && lastSweep.compareAndSet(last, now)) {
+        for (var journal : journals.values()) {
+          if (now - journal.lastUsed > idleNanos) {
+            evict(journal);
+          }
+        }
+      }
+
+      if (bytes.get() > budget) {
+        // Snapshot of when each journal was used, it changes while sorting
+        var used = new HashMap<Journal, Long>();
+        for (var journal : journals.values()) {
+          used.put(journal, journal.lastUsed);
+        }
+        var leastRecentlyUsed = new ArrayList<>(used.keySet());
+        leastRecentlyUsed.sort(Comparator.comparingLong(used::get));
+
+        for (var journal : leastRecentlyUsed) {
+          if (bytes.get() <= budget * 3 / 4) { // Leave some room, not to evict on every append
+            break;
+          }
+          evict(journal);
+        }
+      }
+    } finally {
+      evicting.unlock();
+    }
+  }
+
+  /**
+   * Evict a journal.
+   * @param journal Journal
+   */
+  private void evict(Journal journal) {
+    synchronized (journal) {
+      if (journal.evicted) {
+        return;
+      }
+      journal.evicted = true;
+      journals.remove(journal.channelId, journal);
+      bytes.addAndGet(-journal.bytes);
+      evicted.increment();
+    }
+  }
+
+  /**
+   * Ring of the latest frames of a channel, guarded by itself.
+   */
+  private static class Journal {
+    private final String channelId;
+    private final WsFrame[] frames;
+    private final long base; // Sequence number preceding the first frame
+    private long last; // Sequence number of latest frame
+    private long bytes; // Bytes of the frames in the ring
+    private boolean evicted;
+    private volatile long lastUsed = System.nanoTime();
+
+    Journal(String channelId, int size, long base) {
+      this.channelId = channelId;
+      this.frames = new WsFrame[size];
+      this.base = base;
+      this.last = base;
+    }
+
+    /**
+     * Add a frame, replacing the oldest frame if the ring is full.
+     * @param frame Frame
+     * @return change of the bytes of the ring
+     */
+    long add(WsFrame frame) {
+      last++;
+      lastUsed = System.nanoTime();
+
+      var index = (int)(last % frames.length);
+      var replaced = frames[index];
+      frames[index] = frame;
+
+      var change = frame.size() - (replaced == null ? 0 : replaced.size());
+      bytes += change;
+      return change;
+    }
+
+    WsFrame get(long seq) {
+      return frames[(int)(seq % frames.length)];
+    }
+
+    long first() {
+      return Math.max(base + 1, last - frames.length + 1);
+    }
+  }
+}
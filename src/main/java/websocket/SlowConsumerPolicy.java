@@ -0,0 +1,145 @@
+package websocket;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import common.Metrics;
+import datastructures.WsActionResponse;
+import websocket.core.WsFrame;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Policy for connections that does not keep up with what is sent to them (a client on
+ * a bad mobile link for example). A connection is slow when it has a backlog and either
+ * too many frames or bytes are queued, the sends are too slow on average, or the
+ * current send has been outstanding for too long. A slow connection is then handled by:
+ *
+ * - "drop": frames with a sequence number are dropped, the client notices the gap
+ *   and can resume, anything else is still queued (unless the queue is full).
+ * - "resync": the queue is discarded and replaced by a single "resync-required" marker,
+ *   anything more is dropped until the marker has been sent. The client is expected to
+ *   reload its state.
+ * - "close": the session is closed with TRY_AGAIN_LATER, the client is expected to
+ *   reconnect and reload its state.
+ *
+ * Each time a policy is applied it is counted, see {@link Metrics}.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class SlowConsumerPolicy {
+  private static final Logger log = LogManager.getLogger(SlowConsumerPolicy.class);
+
+  public static final String DROP = "drop";
+  public static final String RESYNC = "resync";
+  public static final String CLOSE = "close";
+
+  // Policy used by all connections
+  public static final SlowConsumerPolicy DEFAULT = new SlowConsumerPolicy(
+    System.getProperty("WS_SLOW_POLICY", RESYNC),
+    Integer.getInteger("WS_OUTBOUND_QUEUE_SIZE", 256),
+    Long.getLong("WS_SLOW_QUEUE_BYTES", 1024L * 1024),
+    Long.getLong("WS_SLOW_LATENCY_MS", 5000));
+
+  // Marker replacing the queue of a slow connection, shared by all connections
+  public static final WsFrame RESYNC_FRAME = createResyncFrame();
+
+  private static final LongAdder dropped = Metrics.counter("ws.slow.dropped");
+  private static final LongAdder resynced = Metrics.counter("ws.slow.resynced");
+  private static final LongAdder closed = Metrics.counter("ws.slow.closed");
+
+  private final String action;
+  private final int maxFrames;
+  private final long maxBytes;
+  private final long maxLatencyNanos;
+
+  /**
+   * Constructor.
+   * @param action Action taken on a slow connection; "drop", "resync" or "close"
+   * @param maxFrames Max amount of queued frames
+   * @param maxBytes Max amount of queued bytes
+   * @param maxLatencyMillis Max (average) milliseconds for a send to complete
+   */
+  public SlowConsumerPolicy(String action, int maxFrames, long maxBytes, long maxLatencyMillis) {
+    if (!DROP.equals(action) && !RESYNC.equals(action) && !CLOSE.equals(action)) {
+      throw new IllegalArgumentException(String.format("Unsupported slow consumer policy %s", action));
+    }
+    this.action = action;
+    this.maxFrames = maxFrames;
+    this.maxBytes = maxBytes;
+    this.maxLatencyNanos = maxLatencyMillis * 1000000;
+  }
+
+  /**
+   * Get action taken on a slow connection.
+   * @return action; "drop", "resync" or "close"
+   */
+  public String getAction() {
+    return action;
+  }
+
+  /**
+   * Get max amount of queued frames, a queue is never allowed to be larger than this.
+   * @return max frames
+   */
+  public int getMaxFrames() {
+    return maxFrames;
+  }
+
+  /**
+   * Whether a connection is slow.
+   * @param frames Frames queued (including one being added)
+   * @param bytes Bytes queued (including one being added)
+   * @param latencyNanos Average nanoseconds for a send to complete
+   * @param stalledNanos Nanoseconds the current send has been outstanding, 0 if none
+   * @return if slow
+   */
+  public boolean isSlow(int frames, long bytes, long latencyNanos, long stalledNanos) {
+    if (frames <= 1 && stalledNanos == 0) {
+      return false; // No backlog
+    }
+    return frames > maxFrames || bytes > maxBytes || latencyNanos > maxLatencyNanos || stalledNanos > maxLatencyNanos;
+  }
+
+  /**
+   * Count a frame that has been dropped.
+   */
+  void onDropped() {
+    dropped.increment();
+  }
+
+  /**
+   * Count a queue that has been replaced by a resync marker.
+   * @param connection Websocket connection
+   */
+  void onResynced(Connection connection) {
+    log.warn(String.format("Connection %s is not keeping up, replaced its queue with a resync marker", connection.getId()));
+    resynced.increment();
+  }
+
+  /**
+   * Count a connection that has been closed.
+   * @param connection Websocket connection
+   */
+  void onClosed(Connection connection) {
+    log.warn(String.format("Connection %s is not keeping up, closing session", connection.getId()));
+    closed.increment();
+  }
+
+  /**
+   * Create the resync marker.
+   * @return encoded marker
+   */
+  private static WsFrame createResyncFrame() {
+    var response = new WsActionResponse();
+    response.type = "resync-required"; // No channel, all channels must be resynchronized
+    try {
+      return WsFrame.of(response);
+    } catch (IOException e) { // Should not happen
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package websocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Registry of open connections and the channels they subscribe on. A user may
+ * have several open connections (several tabs or devices), these are grouped
+ * per user so that anything concerning the user reaches all of them.
+ *
+ * Subscribers of a channel (and channels of a connection) are kept as immutable
+ * snapshots that are replaced atomically (copy-on-write) on every change. A broadcast
+ * can therefore iterate the subscribers of a channel without any locking and without
+ * being affected by connections subscribing, unsubscribing or closing meanwhile.
+ * Changes are far less frequent than broadcasts, so the cost of copying is paid
+ * where it matters the least.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class SubscriberRegistry {
+  private final ConcurrentHashMap<String, Set<Connection>> channelIdToConnections = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Connection, Set<String>> connectionToChannelIds = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<Connection>> userIdToConnections = new ConcurrentHashMap<>();
+
+  /**
+   * Register an opened connection, it may from now on subscribe on channels.
+   * @param connection Websocket connection
+   */
+  public void register(Connection connection) {
+    connectionToChannelIds.putIfAbsent(connection, Set.of());
+    userIdToConnections.compute(connection.getUserID(), (k, connections) -> with(connections, connection));
+  }
+
+  /**
+   * Unregister a closed connection and remove it from all channels it subscribes on.
+   * @param connection Websocket connection
+   * @return channels the connection subscribed on
+   */
+  public Set<String> unregister(Connection connection) {
+    userIdToConnections.computeIfPresent(connection.getUserID(), (k, connections) -> orNull(without(connections, connection)));
+
+    var channelIds = connectionToChannelIds.remove(connection);
+    if (channelIds == null) {
+      return Set.of();
+    }
+
+    for (var channelId : channelIds) {
+      channelIdToConnections.computeIfPresent(channelId, (k, connections) -> orNull(without(connections, connection)));
+    }
+    return channelIds;
+  }
+
+  /**
+   * Subscribe a connection on a channel.
+   * @param connection Websocket connection
+   * @param channelId Channel ID
+   * @return whether the connection is registered (and now subscribing)
+   */
+  public boolean subscribe(Connection connection, String channelId) {
+    var channelIds = connectionToChannelIds.computeIfPresent(connection, (k, ids) -> with(ids, channelId));
+    if (channelIds == null) {
+      return false; // Connection has been closed (or never registered)
+    }
+
+    channelIdToConnections.compute(channelId, (k, connections) -> with(connections, connection));
+
+    // If the connection was closed meanwhile its removal may not have seen this channel
+    if (!connectionToChannelIds.containsKey(connection)) {
+      channelIdToConnections.computeIfPresent(channelId, (k, connections) -> orNull(without(connections, connection)));
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Unsubscribe a connection from a channel.
+   * @param connection Websocket connection
+   * @param channelId Channel ID
+   */
+  public void unsubscribe(Connection connection, String channelId) {
+    channelIdToConnections.computeIfPresent(channelId, (k, connections) -> orNull(without(connections, connection)));
+    connectionToChannelIds.computeIfPresent(connection, (k, ids) -> without(ids, channelId));
+  }
+
+  /**
+   * Remove a channel and all its subscriptions.
+   * @param channelId Channel ID
+   * @return connections that subscribed on the channel
+   */
+  public Set<Connection> removeChannel(String channelId) {
+    var connections = channelIdToConnections.remove(channelId);
+    if (connections == null) {
+      return Set.of();
+    }
+
+    for (var connection : connections) {
+      connectionToChannelIds.computeIfPresent(connection, (k, ids) -> without(ids, channelId));
+    }
+    return connections;
+  }
+
+  /**
+   * Get a snapshot of the connections subscribing on a channel.
+   * @param channelId Channel ID
+   * @return subscribing connections (immutable, never null)
+   */
+  public Set<Connection> getSubscribers(String channelId) {
+    return channelIdToConnections.getOrDefault(channelId, Set.of());
+  }
+
+  /**
+   * Get a snapshot of the channels a connection subscribes on.
+   * @param connection Websocket connection
+   * @return channel IDs (immutable, never null)
+   */
+  public Set<String> getChannels(Connection connection) {
+    return connectionToChannelIds.getOrDefault(connection, Set.of());
+  }
+
+  /**
+   * Get all connections subscribing on at least one of some channels, e.g. the channels
+   * of a user, to reach everyone sharing a channel with the user.
+   * @param channelIds Channel IDs
+   * @return connections
+   */
+  public Set<Connection> getPeers(Collection<String> channelIds) {
+    var peers = new HashSet<Connection>();
+    for (var channelId : channelIds) {
+      peers.addAll(getSubscribers(channelId));
+    }
+    return peers;
+  }
+
+  /**
+   * Get a snapshot of the open connections of a user.
+   * @param userId User ID
+   * @return connections (immutable, never null)
+   */
+  public Set<Connection> getConnections(String userId) {
+    return userIdToConnections.getOrDefault(userId, Set.of());
+  }
+
+  /**
+   * Copy of a set with an element added.
+   * @param set Existing set (may be null)
+   * @param element Element to add
+   * @return immutable set
+   */
+  private static <T> Set<T> with(Set<T> set, T element) {
+    if (set != null && set.contains(element)) {
+      return set;
+    }
+    var copy = set == null ? new HashSet<T>() : new HashSet<T>(set);
+    copy.add(element);
+    return Collections.unmodifiableSet(copy);
+  }
+
+  /**
+   * Copy of a set with an element removed.
+   * @param set Existing set
+   * @param element Element to remove
+   * @return immutable set
+   */
+  private static <T> Set<T> without(Set<T> set, T element) {
+    if (!set.contains(element)) {
+      return set;
+    }
+    var copy = new HashSet<T>(set);
+    copy.remove(element);
+    return Collections.unmodifiableSet(copy);
+  }
+
+  /**
+   * An empty set becomes null, so the mapping is removed when used in the compute
+   * methods of a map (channels without subscribers are not kept around).
+   * @param set Set
+   * @return set or null if empty
+   */
+  private static <T> Set<T> orNull(Set<T> set) {
+    return set.isEmpty() ? null : set;
+  }
+}
@@ -1,29 +1,20 @@
 package websocket;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import javax.inject.Singleton;
-import javax.websocket.CloseReason;
 import javax.websocket.OnMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
-import javax.xml.bind.DatatypeConverter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 
@@ -31,7 +22,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import common.ActionDataCaster;
+import common.Id;
 import common.Json;
+import common.Metrics;
 import datastructures.Image;
 import datastructures.ImageData;
 import datastructures.MessageAction;
@@ -40,12 +33,19 @@ import datastructures.Text;
 import datastructures.UserInfo;
 import datastructures.WsActionRequest;
 import datastructures.WsActionResponse;
+import datastructures.WsBusEvent;
 import services.ChannelDb;
-import services.S3;
+import services.EventBus;
+import services.ImageStore;
+import services.LocalEventBus;
+import services.PgEventBus;
+import services.RateLimiter;
 import services.UserDb;
 import websocket.core.WsConfiguration;
+import websocket.core.ActionParser;
+import websocket.core.FrameAssembler;
+import websocket.core.WsFrame;
 import websocket.core.WsServerBase;
-import websocket.core.WsUtils;
 
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
@@ -59,6 +59,18 @@ import websocket.core.WsUtils;
  * A connection can be associated with one or several channels, anything
  * broadcasted for these channels will be broadcasted for connections associated
  * with them.
+ *
+ * Actions are received as binary messages, either as JSON or as a binary image
+ * frame carrying a JSON header followed by the raw image bytes (see {@link ActionParser}
+ * for its layout), images embedded as base64 in JSON are still accepted for older clients.
+ * Clients may negotiate Smile (binary JSON) instead of JSON with the subprotocol "chat.smile".
+ *
+ * Broadcasts (and the changes of subscriptions that goes with them) are published on an
+ * event bus, each node running the service fans them out to its own connections. A single
+ * node uses an in-process bus, several nodes (behind a load balancer) set WS_EVENT_BUS
+ * to "postgres" to use LISTEN/NOTIFY of the database (see {@link PgEventBus}). The message
+ * cache of a node is only written through by the node itself, so it is invalidated for a
+ * channel when another node adds, updates or removes messages of the channel.
  * 
  * References:
  * https://abhishek-gupta.gitbook.io/java-websocket-api-handbook/lifecycle_and_concurrency_semantics
@@ -67,24 +79,61 @@ import websocket.core.WsUtils;
  * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
  */
 @Singleton
-@ServerEndpoint(value = "/ws", configurator = WsConfiguration.class)
+@ServerEndpoint(value = "/ws", configurator = WsConfiguration.class, subprotocols = { "chat.smile" })
 public class WsServer extends WsServerBase {
   private static final Logger log = LogManager.getLogger(WsServer.class);
 
-  // Heavily used to test the expression:
-  // https://www.freeformatter.com/java-regex-tester.html
-  private static final Pattern BASE64_META_PATTERN = Pattern.compile("data:image/(?<format>\\w+)(?:\\+\\w+)?;base64");
+  private static final SubscriberRegistry registry = new SubscriberRegistry();
+
+  private static final ActionDispatcher dispatcher = new ActionDispatcher(
+    Integer.getInteger("WS_ACTION_THREADS", Runtime.getRuntime().availableProcessors() * 2),
+    Integer.getInteger("WS_ACTION_QUEUE_SIZE", 10000));
+
+  private static final ImagePipeline images = new ImagePipeline(
+    Integer.getInteger("WS_IMAGE_THREADS", 2), Integer.getInteger("WS_IMAGE_QUEUE_SIZE", 64));
+
+  private static final ReplayLog replays = new ReplayLog(Integer.getInteger("WS_REPLAY_SIZE", 256),
+    Long.getLong("WS_REPLAY_BYTES", 64L * 1024 * 1024), Long.getLong("WS_REPLAY_IDLE_SECONDS", 600));
+
+  // Cost of actions in tokens of the rate limiter, by how much work (and database load) they cause
+  private static final Map<String, Integer> ACTION_COSTS = Map.of(
+    "message", 1,
+    "message-delete", 1,
+    "channel-subscribe", 2,
+    "channel-unsubscribe", 2,
+    "channel-delete", 5,
+    "profile-update", 5,
+    "resume", 2);
+  private static final int IMAGE_COST = 5;
+
+  // Responses of events changing the messages of a channel
+  private static final Set<String> MESSAGE_CHANGES = Set.of("message", "message-deleted", "image-ready");
+
+  private static final LongAdder rateLimited = Metrics.counter("ratelimit.ws.rejected");
+  private static final LongAdder overloaded = Metrics.counter("ws.actions.overloaded");
+
+  private static final BroadcastCoalescer coalescer = new BroadcastCoalescer(
+    Long.getLong("WS_COALESCE_WINDOW_MS", 5), Integer.getInteger("WS_COALESCE_RATE", 100),
+    Integer.getInteger("WS_COALESCE_MAX_BATCH", 64));
+
+  // Identifies the events published by this node
+  private static final String NODE = Id.generate();
+
+  private final EventBus bus = "postgres".equalsIgnoreCase(System.getProperty("WS_EVENT_BUS"))
+    ? new PgEventBus("ws_events") : new LocalEventBus();
+
+  /** Constructor */
+  public WsServer() {
+    bus.subscribe(this::onEvent);
+  }
 
-  private static final ConcurrentHashMap<String, byte[]> transfers = new ConcurrentHashMap<>();
-  private static final ConcurrentHashMap<String, Set<Connection>> channelIdToConnections = new ConcurrentHashMap<>();
-  private static final ConcurrentHashMap<String, Connection> userIdToConnection = new ConcurrentHashMap<>();
   /**
    * A new connection has been established.
    * @param connection Websocket connection
    */
   @Override
   public void onOpen(Connection connection) {
-    WsServer.userIdToConnection.put(connection.getUserID(), connection);
+    WsServer.registry.register(connection);
 
     // Log connection
     var id = connection.getId();
@@ -92,13 +141,14 @@ public class WsServer extends WsServerBase {
     var userId = connection.getUserID();
     var userEmail = connection.getUserEmail();
 
-    log.info(String.format("Connection opened = { id: %s, remoteAddress: %s, userId: %s, userEmail: %s }", id, remoteAddr, userId, userEmail));
+    log.info(String.format("Connection opened = { id: %s, remoteAddress: %s, userId: %s, userEmail: %s, codec: %s, compressed: %s }",
+      id, remoteAddr, userId, userEmail, connection.getCodec(), connection.isCompressed()));
 
     // Set up existing subscriptions for connection
     try {
       var subscribedChannels = ChannelDb.getChannels(userId);
       for (var channel : subscribedChannels) {
-        WsServer.channelIdToConnections.computeIfAbsent(channel.id, k -> new HashSet<>()).add(connection);
+        WsServer.registry.subscribe(connection, channel.id);
       }
     } catch (Exception e) {
       log.error(String.format("Could not setup subscriptions for connection: %s", connection.getId()));
@@ -112,11 +162,11 @@ public class WsServer extends WsServerBase {
    */
   @Override
   public void onClose(Connection connection) {
-    WsServer.userIdToConnection.remove(connection.getUserID(), connection);
+    // Remove connection for the channels it subscribes on
+    WsServer.registry.unregister(connection);
 
-    for (var value : WsServer.channelIdToConnections.values()) {
-      value.remove(connection); // Remove connection for channels
-    }
+    // Discard any message being received when closed
+    connection.getParser().reset();
 
     var id = connection.getId();
     var remoteAddr = connection.getRemoteAddr();
@@ -126,112 +176,17 @@ public class WsServer extends WsServerBase {
   }
 
   /**
-   * Process binary stream by accumulating previous data with new until all data
-   * has been transferred.
-   * 
-   * @param newData New byte array of data
-   * @param finish  If all data has been transferred
-   * @param session Websocket connection
-   */
-  private void processBinaryMessage(byte[] newData, boolean finish, Session session) {
-    // One connection cannot do concurrent streaming, so this is probably
-    // unnecessary thread protection
-    // also each instance of this class is attached to a Session so it will not
-    // intervene with any other,
-    // instead just store a data array container as a private variable and then when
-    // finish clear it
-    if (WsServer.transfers.containsKey(session.getId())) {
-      var existingData = WsServer.transfers.get(session.getId());
-      var concatenatedData = Arrays.copyOf(existingData, existingData.length + newData.length);
-
-      // Append to previous transfer data
-      System.arraycopy(newData, 0, concatenatedData, existingData.length, newData.length);
-
-      WsServer.transfers.put(session.getId(), concatenatedData);
-    } else {
-      WsServer.transfers.put(session.getId(), newData);
-    }
-  }
-
-  private String storeImageByteArray(Connection connection, ImageData image)
-  throws IOException {
-    var checksum = getCheckSum(image.data);
-    var catalinaBaseDir = System.getProperty("catalina.base");
-    var directory = System.getProperty("IMAGES");
-
-    var filePath = String.format("%s/%s/%s.%s", catalinaBaseDir, directory, checksum, image.format);
-    log.info(String.format("Attempting to store image at: %s", filePath));
-
-    var file = new File(filePath);
-    // As the filename is being generated using a checksum we only write if the file does not
-    // exist since earlier, if it exist the resuse that url 
-    if (!file.exists()) {
-      // If create upload directory on server if not existing
-      file.getParentFile().mkdirs();
-
-      // Write file locally on Tomcat (temporary storage)
-      Files.write(file.toPath(), image.data);
-
-      log.info(String.format("Successfully written image to: %s", file));
-
-      // Store in AWS S3 (simple service)
-      // Add file also ınto a "persistent storage" and broadcast the image url to this storage
-      // instead of using the Tomcat to host files, which will have the leverage of minimizing the amount
-      // of traffic going to the server and save space on the disc
-      var s3 = new S3(System.getProperty("AWS_S3_UPLOAD"));
-      s3.put(String.format("images/%s.%s", checksum, image.format), file);
-
-      log.info("Image successfully stored");
-    } else {
-      log.info("Image already stored");
-    }
-
-    log.info(String.format("Image located in server at: %s", file.getAbsolutePath()));
-
-    var region = System.getProperty("AWS_REGION");
-    var bucket = System.getProperty("AWS_S3_UPLOAD");
-    var imageUrl = String.format("https://%s.s3-%s.amazonaws.com/images/%s.%s", bucket, region, checksum, image.format);
-
-    log.info(String.format("Image is obtainable from S3 at: %s", imageUrl));
-    return imageUrl;
-  }
-
-  /**
-   * Get file checksum for when storing, if file already exists do not store it.
-   * https://stackoverflow.com/a/34448106
-   * https://stackoverflow.com/a/26231444
-   * @param bytes Bytes to calculate checksum on
-   * @return checksum as a hash
-   */
-  private String getCheckSum(byte[] bytes) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      return DatatypeConverter.printHexBinary(md.digest(bytes));
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-    }
-    return null;
-  }
-
-  /**
-   * Parses and transforms a base64 string into a binary image
-   * @param imageData base64 string containing an image
+   * Get image of a field, embedded images are decoded already while being parsed
+   * (see {@link ActionParser}), otherwise it is parsed and transformed from a base64 string.
+   * @param value decoded image or base64 string containing an image
    * @return meta and binary data of image
    */
-  private ImageData readBase64Image(String imageBase64String) {
-    var imageBase64Array = imageBase64String.split(",");
-    var imageMeta = imageBase64Array[0];
-    var imageData = imageBase64Array[1].getBytes(StandardCharsets.UTF_8);
-
-    log.info(String.format("Base64 metadata: %s", imageMeta));
-
-    // The base64 meta description will look something like "data:image/jpeg;base64",
-    // or even "data:image/svg+xml;base64" depending on format, use a regular expression
-    // to retrieve this using a named capture group
-    var matcher = WsServer.BASE64_META_PATTERN.matcher(imageMeta);
-    var format = matcher.find() ? matcher.group("format") : "jpeg"; // Default to "jpeg"
-
-    return new ImageData(format.strip(), Base64.getDecoder().decode(imageData));
+  private ImageData readImage(Object value) throws IOException {
+    if (value instanceof ImageData) {
+      return (ImageData)value;
+    }
+    var imageBase64String = String.class.cast(value);
+    return ActionParser.decodeDataUrl(imageBase64String.toCharArray(), 0, imageBase64String.length());
   }
 
   /**
@@ -248,22 +203,30 @@ public class WsServer extends WsServerBase {
     switch (message.type) {
       // Message with plain text and/or image
       case "image": {
-        // Store image
-        var imageBase64 = message.data.get("image");
-        var imageData = readBase64Image(imageBase64);
-        var imageUrl = storeImageByteArray(connection, imageData);
+        var imageData = readImage(message.data.get("image"));
 
-        // Send image message to all connections subscribing to channel
-        var data = new Image(message.data.get("text"), imageUrl);
+        // Send image message to all connections subscribing to channel right away,
+        // the image is pending until it has been stored
+        var data = new Image(String.class.cast(message.data.get("text")), null, true);
         var postedMessage = ChannelDb.addMessage(userId, message.channelId, data);
 
         broadcastMessage(connection, postedMessage);
+
+        // Store image (off this thread)
+        images.store(imageData).whenComplete((imageUrl, e) -> {
+          // Ordered with anything else happening in the channel, if the dispatcher is saturated
+          // it is completed right away instead (on this thread), the message must not stay pending
+          var dispatched = WsServer.dispatcher.dispatch(getChannelKey(postedMessage.channelId), () -> onImageStored(postedMessage, imageUrl, e));
+          if (!dispatched) {
+            onImageStored(postedMessage, imageUrl, e);
+          }
+        });
         break;
       }
       // Message with plain text
       case "text": {
         // Send text message to all connections subscribing to channel
-        var data = new Text(message.data.get("text"));
+        var data = new Text(String.class.cast(message.data.get("text")));
         var postedMessage = ChannelDb.addMessage(userId, message.channelId, data);
 
         broadcastMessage(connection, postedMessage);
@@ -278,6 +241,52 @@ public class WsServer extends WsServerBase {
     }
   }
 
+  /**
+   * An image of a pending message has been stored (or failed to be), update the message
+   * and broadcast that the image is ready. If it failed the message is removed.
+   * @param message Message (that has been stored in the database)
+   * @param imageUrl URL of the stored image
+   * @param error Error if the image could not be stored
+   */
+  private void onImageStored(MessageRecord message, String imageUrl, Throwable error) {
+    var pending = Image.class.cast(message.data);
+    try {
+      if (error != null) {
+        log.error(String.format("Could not store image of message %s, removing it", message.id), error);
+        ChannelDb.removeMessage(message.id, message.channelId, message.userId);
+
+        var data = new HashMap<String, Object>();
+        data.put("id", message.id);
+        data.put("channelId", message.channelId);
+
+        var response = new WsActionResponse();
+        response.type = "message-deleted";
+        response.data = data;
+        publishToChannel(message.channelId, response);
+        return;
+      }
+
+      var data = new Image(pending.text, imageUrl, false);
+      ChannelDb.updateMessage(message.id, message.channelId, data);
+
+      var ready = new MessageRecord();
+      ready.id = message.id;
+      ready.userId = message.userId;
+      ready.channelId = message.channelId;
+      ready.index = message.index;
+      ready.type = message.type;
+      ready.created = message.created;
+      ready.data = data;
+
+      var response = new WsActionResponse();
+      response.type = "image-ready";
+      response.data = ready;
+      publishToChannel(message.channelId, response);
+    } catch (Exception e) {
+      log.error(String.format("Could not update message %s with stored image", message.id), e);
+    }
+  }
+
   /**
    * Broadcasts a message action, containing a message with plain text or/and
    * image. The message is broadcaste to associated channel it was created in.
@@ -287,17 +296,12 @@ public class WsServer extends WsServerBase {
   private void broadcastMessage(Connection connection, MessageRecord message) {
     log.info(String.format("Broadcasting (%s) to %s with text = %s",
         message.type, message.channelId, message.data));
-    var connections = WsServer.channelIdToConnections.get(message.channelId);
-
-    if (connections == null || connections.isEmpty()) {
-      log.info(String.format("No active connections subscribing on channel %s", message.channelId));
-    } else {
-      var response = new WsActionResponse();
-      response.type = "message";
-      response.data = message;
+    var response = new WsActionResponse();
+    response.type = "message";
+    response.data = message;
 
-      broadcast(connections, response);
-    }
+    // Sequenced even if there are no subscribers, so that the channel can be resumed
+    publishToChannel(message.channelId, response);
   }
 
   /**
@@ -321,9 +325,8 @@ public class WsServer extends WsServerBase {
         changeSet.put("profile_image_url", null);
       } else {
         // Store image
-        var imageBase64 = String.class.cast(data.get("profileImageData"));
-        var imageData = readBase64Image(imageBase64);
-        var imageUrl = storeImageByteArray(connection, imageData);
+        var imageData = readImage(profileImageData);
+        var imageUrl = ImageStore.store(imageData);
 
         // Add profile image url to changes
         changeSet.put("profile_image_url", imageUrl);
@@ -336,20 +339,16 @@ public class WsServer extends WsServerBase {
     UserDb.updateUser(connection.getUserID(), changeSet);
     var userInfo = new UserInfo(UserDb.getUser(connection.getUserID()));
 
-    // Get connections contained in same channel as user being changed 
-    Set<Connection> connections = channelIdToConnections.entrySet().stream()
-      .filter((entry) -> entry.getValue().contains(connection))
-      .map((entry) -> entry.getValue())
-      .flatMap(Collection::stream)
-      .collect(Collectors.toSet());
-
     // Create response object
     var response = new WsActionResponse();
       response.type = "profile-changed";
       response.data = userInfo;
 
-    // Broadcast changes to associated connections
-    broadcast(connections, response);
+    // Broadcast changes to connections contained in same channels as user being changed, only
+    // the channels the connection subscribes on needs to be visited
+    var event = event("peers", null, connection.getUserID(), response);
+    event.channelIds = new ArrayList<>(WsServer.registry.getChannels(connection));
+    bus.publish(event);
   }
 
   /**
@@ -371,8 +370,7 @@ public class WsServer extends WsServerBase {
       response.type = "message-deleted";
       response.data = data;
 
-      var connections = channelIdToConnections.get(channelId);
-      broadcast(connections, response);
+      publishToChannel(channelId, response);
     }
   }
 
@@ -397,16 +395,13 @@ public class WsServer extends WsServerBase {
       // Remove channel, subscriptions and messages in this channel
       ChannelDb.deleteChannel(channelId);
 
-      // Remove and get connections for channel
-      var connections = WsServer.channelIdToConnections.remove(channelId);
-      
       // Broadcast changes to associated connections
       var response = new WsActionResponse();
       response.type = "channel-deleted";
       response.data = channelId;
 
-      // Broad cast to associated users; subscribed to channel
-      broadcast(connections, response);
+      // Broad cast to associated users; subscribed to channel, and remove the channel
+      bus.publish(event("channel-delete", channelId, userId, response));
     }
   }
 
@@ -425,12 +420,6 @@ public class WsServer extends WsServerBase {
     // Set the creating user as subscriber on channel
     ChannelDb.subscribeChannel(userId, channelId);
 
-    // Add connection to channel
-    WsServer.channelIdToConnections.computeIfAbsent(channelId, k -> new HashSet<>()).add(connection);
-
-    // Get all connections for channel
-    var connections = WsServer.channelIdToConnections.get(channelId);
-
     // Get subscribed channel
     var subscribedChannel = ChannelDb.getChannel(channelId);
 
@@ -442,8 +431,8 @@ public class WsServer extends WsServerBase {
     response.type = "channel-subscribed";
     response.data = subscribedChannelData;
 
-    // Broadcast changes to associated connections
-    broadcast(connections, response);
+    // Add connections of user to channel (all devices of the user) and broadcast changes
+    bus.publish(event("channel-subscribe", channelId, userId, response));
   }
 
   /**
@@ -464,28 +453,128 @@ public class WsServer extends WsServerBase {
     // Set the creating user as subscriber on channel
     ChannelDb.unsubscribeChannel(userId, channelId);
 
-    // Get all connections for channel
-    var connections = WsServer.channelIdToConnections.get(channelId);
-
     var response = new WsActionResponse();
     response.type = "channel-unsubscribed";
     response.data = data;
 
-    // Broadcast changes to associated connections (including connection being removed)
-    broadcast(connections, response);
+    // Broadcast changes to associated connections (including connection being removed),
+    // then remove connections of user from channel
+    bus.publish(event("channel-unsubscribe", channelId, userId, response));
+  }
+  /**
+   * A reconnecting client resumes the channels it subscribes on from the last sequence
+   * number it has seen on each of them, anything missed meanwhile is replayed from memory.
+   * If a gap can not be filled (the server has been restarted or the client is too far
+   * behind) the client is told to resynchronize the channel on its own.
+   *
+   * Frames broadcasted after the connection was opened may be replayed once more,
+   * clients are expected to ignore any sequence number they have already seen.
+   *
+   * @param connection Websocket connection
+   * @param action Action with epoch and last seen sequence number per channel
+   */
+  @SuppressWarnings("unchecked")
+  private void incomingResume(Connection connection, WsActionRequest action) {
+    var data = action.data;
+    var epoch = String.class.cast(data.get("epoch"));
+    var channels = (Map<String, Object>)data.get("channels");
+    if (channels == null) {
+      return;
+    }
+
+    var subscribed = WsServer.registry.getChannels(connection);
+    for (var entry : channels.entrySet()) {
+      var channelId = entry.getKey();
+      if (!subscribed.contains(channelId)) {
+        continue; // Only channels the connection subscribes on may be resumed
+      }
+
+      var since = Number.class.cast(entry.getValue()).longValue();
+      var resumed = WsServer.replays.replay(channelId, epoch, since, connection::send);
+      log.info(String.format("Resume %s for %s from %s: %s", channelId, connection.getId(), since, resumed));
+
+      if (!resumed) {
+        var response = new WsActionResponse();
+        response.type = "resync-required";
+        response.data = Map.of("channelId", channelId);
+        response.epoch = WsServer.replays.getEpoch();
+        broadcast(Set.of(connection), response);
+      }
+    }
+  }
+
+  /**
+   * Get key of the mailbox an action is dispatched to, actions concerning a channel
+   * are ordered by the channel and anything else by the user.
+   * @param connection Websocket connection
+   * @param action Action
+   * @return key
+   */
+  private static String getOrderingKey(Connection connection, WsActionRequest action) {
+    Object channelId = null;
+    if (action.data != null && action.type != null) {
+      switch (action.type) {
+        case "message":
+        case "message-delete": {
+          channelId = action.data.get("channelId");
+          break;
+        }
+        case "channel-delete":
+        case "channel-subscribe":
+        case "channel-unsubscribe": {
+          channelId = action.data.get("id");
+          break;
+        }
+        default: {
+          break;
+        }
+      }
+    }
+    return channelId instanceof String ? getChannelKey((String)channelId) : "user:" + connection.getUserID();
+  }
+
+  /**
+   * Get key of the mailbox for a channel.
+   * @param channelId Channel ID
+   * @return key
+   */
+  private static String getChannelKey(String channelId) {
+    return "channel:" + channelId;
+  }
 
-    // Remove connection from channel (after broadcast)
-    connections.remove(connection);
+  /**
+   * Get cost of an action in tokens of the rate limiter, a message with an image
+   * costs as much as an image.
+   * @param action Action
+   * @return cost
+   */
+  private static int getActionCost(WsActionRequest action) {
+    if ("message".equals(action.type) && action.data != null && "image".equals(action.data.get("type"))) {
+      return IMAGE_COST;
+    }
+    return ACTION_COSTS.getOrDefault(action.type, 1);
   }
 
   /**
    * Processes incoming events which will be processed and then broadcasted
-   * to associated connections.
+   * to associated connections. Actions exceeding the rate of the user are rejected,
+   * the connection is told so with a "rate-limited" response.
    * @param connection Websocket connection
    * @param action Action with content to be processed and broadcasted
    */
   private void processAction(Connection connection, WsActionRequest action)
   throws ReflectiveOperationException, SQLException, IOException, GeneralSecurityException {
+    if (!RateLimiter.getInstance().tryAcquire(connection.getUserID(), getActionCost(action))) {
+      log.warn(String.format("Rate limit exceeded by %s on action %s", connection.getUserID(), action.type));
+      rateLimited.increment();
+
+      var response = new WsActionResponse();
+      response.type = "rate-limited";
+      response.data = Map.of("action", String.valueOf(action.type));
+      broadcast(Set.of(connection), response);
+      return;
+    }
+
     switch (action.type) {
       // A message has been added (to channel)
       case "message": {
@@ -518,6 +607,11 @@ public class WsServer extends WsServerBase {
         incomingProfileChangeAction(connection, action);
         break;
       }
+      // A client has reconnected and catches up on what it missed
+      case "resume": {
+        incomingResume(connection, action);
+        break;
+      }
       default: {
         throw new IllegalArgumentException(String.format("Unsupported action %s", action.type));
       }
@@ -529,48 +623,207 @@ public class WsServer extends WsServerBase {
    * transformed into its represented data.
    *
    * Better for handling large messages containing, especially when it comes to images,
-   * all messages will be streamed using this method.
+   * all messages will be streamed using this method. Each chunk is fed to an incremental
+   * parser of the connection as it arrives, so a message is never assembled as a whole.
    *
-   * @param newData All or chunk of data
+   * @param chunk All or chunk of data
    * @param finish If data stream has finished
    * @param session Websocket session
    */
-  @OnMessage(maxMessageSize = 1024000)
-  public void onBinaryMessage(byte[] newData, boolean finish, Session session) {
-    log.info(String.format("From: %s -> Chunk: %s -> Finish: %s", session.getId(), newData.length, finish));
-    processBinaryMessage(newData, finish, session);
-
-    if (finish) {
-      // Remove and return previous associated value
-      var bytes = WsServer.transfers.remove(session.getId());
-      var connection = WsServerBase.connections.get(session.getId());
-
-      try {
-        // Transform into an action object
-        var action = Json.parse(bytes, WsActionRequest.class);
-        // Process action object
-        processAction(connection, action);
-      } catch (JsonProcessingException e) {
-        System.err.println("[WsServer::onBinaryMessage] could not parse message, ignoring...");
-      } catch (Exception e) {
-        e.printStackTrace();
+  @OnMessage(maxMessageSize = FrameAssembler.MAX_MESSAGE_SIZE)
+  public void onBinaryMessage(ByteBuffer chunk, boolean finish, Session session) {
+    log.info(String.format("From: %s -> Chunk: %s -> Finish: %s", session.getId(), chunk.remaining(), finish));
+    heartbeats.touch(session);
+
+    var connection = WsServerBase.connections.get(session.getId());
+    if (connection == null) {
+      return; // Session has been rejected (or closed)
+    }
+
+    try {
+      // Transform into an action object (once all chunks are received)
+      var action = connection.getParser().feed(chunk, finish);
+      if (action != null) {
+        // Process action object (on a worker thread, in order within its channel)
+        var dispatched = WsServer.dispatcher.dispatch(getOrderingKey(connection, action), () -> {
+          try {
+            processAction(connection, action);
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        });
+
+        if (!dispatched) {
+          log.warn(String.format("Dropped action %s from %s, server is overloaded", action.type, session.getId()));
+          overloaded.increment();
+
+          // Tell the client, it may retry the action later
+          var response = new WsActionResponse();
+          response.type = "overloaded";
+          response.data = Map.of("action", String.valueOf(action.type));
+          broadcast(Set.of(connection), response);
+        }
       }
+    } catch (JsonProcessingException e) {
+      log.warn(String.format("Could not parse message from %s, ignoring: %s", session.getId(), e.getOriginalMessage()));
+    } catch (Exception e) {
+      e.printStackTrace();
     }
   }
 
   /**
    * Broadcast a response action to associated connections with any related data.
+   * The response is encoded once into a frame shared by all connections, which is
+   * only enqueued on each connection and sent asynchronously.
    * @param connections Websocket connections to retrieve data
    * @param response Response data to be sent
    */
-  private synchronized void broadcast(Set<Connection> connections, WsActionResponse response) {
-    log.info(String.format("Sending to %s connections", connections.size()));
+  private void broadcast(Set<Connection> connections, WsActionResponse response) {
+    if (connections.isEmpty()) {
+      return;
+    }
+
+    WsFrame frame;
+    try {
+      frame = WsFrame.of(response);
+    } catch (IOException e) { // Should not happen, responses only contain serializable data
+      log.error(String.format("Could not encode response of type: %s", response.type), e);
+      return;
+    }
+    send(connections, frame, false);
+  }
+
+  /**
+   * Create an event to be published on the bus.
+   * @param type Type of event
+   * @param channelId Channel concerned
+   * @param userId User concerned
+   * @param response Response to be broadcasted
+   * @return event
+   */
+  private static WsBusEvent event(String type, String channelId, String userId, WsActionResponse response) {
+    var event = new WsBusEvent();
+    event.type = type;
+    event.channelId = channelId;
+    event.userId = userId;
+    event.response = response;
+    event.node = NODE;
+    return event;
+  }
+
+  /**
+   * Publish a response action to be broadcasted to the subscribers of a channel on all nodes.
+   * @param channelId Channel ID
+   * @param response Response data to be sent
+   */
+  private void publishToChannel(String channelId, WsActionResponse response) {
+    bus.publish(event("channel", channelId, null, response));
+  }
+
+  /**
+   * An event has been published on the bus (by any node), apply it to the connections of this node.
+   * @param event Event
+   */
+  private void onEvent(WsBusEvent event) {
+    switch (event.type) {
+      // A response to subscribers of a channel
+      case "channel": {
+        if (!NODE.equals(event.node) && MESSAGE_CHANGES.contains(event.response.type)) {
+          ChannelDb.invalidateMessages(event.channelId); // Changed by another node
+        }
+        broadcastToChannel(event.channelId, event.response);
+        break;
+      }
+      // A response to connections sharing a channel with a user
+      case "peers": {
+        broadcast(WsServer.registry.getPeers(event.channelIds), event.response);
+        break;
+      }
+      // A user subscribes on a channel, with all its connections, then tell the subscribers
+      case "channel-subscribe": {
+        for (var connection : WsServer.registry.getConnections(event.userId)) {
+          WsServer.registry.subscribe(connection, event.channelId);
+        }
+        broadcastToChannel(event.channelId, event.response);
+        break;
+      }
+      // Tell the subscribers that a user unsubscribes on a channel, then remove all its connections
+      case "channel-unsubscribe": {
+        broadcastToChannel(event.channelId, event.response);
+        for (var connection : WsServer.registry.getConnections(event.userId)) {
+          WsServer.registry.unsubscribe(connection, event.channelId);
+        }
+        break;
+      }
+      // A channel has been deleted, tell the subscribers it had
+      case "channel-delete": {
+        if (!NODE.equals(event.node)) {
+          ChannelDb.invalidateMessages(event.channelId); // Deleted by another node
+        }
+        var connections = WsServer.registry.removeChannel(event.channelId);
+        broadcastToChannel(event.channelId, () -> connections, event.response);
+
+        // Nothing more will happen on the channel
+        WsServer.replays.remove(event.channelId);
+        WsServer.coalescer.remove(event.channelId);
+        break;
+      }
+      // A new channel has been created by a user
+      case "user-subscribe": {
+        for (var connection : WsServer.registry.getConnections(event.userId)) {
+          WsServer.registry.subscribe(connection, event.channelId);
+        }
+        break;
+      }
+      default: {
+        log.warn(String.format("Unsupported event %s", event.type));
+      }
+    }
+  }
+
+  /**
+   * Broadcast a response action to the subscribers of a channel, the response is
+   * stamped with the next sequence number of the channel and kept for replay.
+   * @param channelId Channel ID
+   * @param response Response data to be sent
+   */
+  private void broadcastToChannel(String channelId, WsActionResponse response) {
+    broadcastToChannel(channelId, () -> WsServer.registry.getSubscribers(channelId), response);
+  }
+
+  /**
+   * Broadcast a response action to given connections on behalf of a channel, the response
+   * is stamped with the next sequence number of the channel and kept for replay. Connections
+   * are resolved in sequence order, a connection subscribing meanwhile either gets the frame
+   * sent or is able to replay it.
+   *
+   * Events of a busy channel are coalesced on each connection (see {@link BroadcastCoalescer}).
+   * @param channelId Channel ID
+   * @param connections Supplier of the websocket connections to retrieve data
+   * @param response Response data to be sent
+   */
+  private void broadcastToChannel(String channelId, Supplier<Set<Connection>> connections, WsActionResponse response) {
+    var coalesce = WsServer.coalescer.record(channelId);
+    try {
+      WsServer.replays.append(channelId, response, frame -> send(connections.get(), frame, coalesce));
+    } catch (IOException e) { // Should not happen, responses only contain serializable data
+      log.error(String.format("Could not encode response of type: %s", response.type), e);
+    }
+  }
 
+  /**
+   * Enqueue a pre-encoded frame on each connection.
+   * @param connections Websocket connections to retrieve data
+   * @param frame Encoded response
+   * @param coalesce Whether the frame may be held back and sent in a batch
+   */
+  private void send(Set<Connection> connections, WsFrame frame, boolean coalesce) {
+    log.info(String.format("Sending to %s connections", connections.size()));
     for (var connection : connections) {
       if(connection.getSession() == null) { // Should never happen (as we cleanup, but add it if any bugs)
         // Just print out a stacktrace, do not throw...
         new RuntimeException("Found connection with no active session").printStackTrace();
-        connections.remove(connection); // Remove from collection so no further errors occurr
+        WsServer.registry.unregister(connection); // Remove from registry so no further errors occurr
         continue; // Skip and continue
       }
 
@@ -579,34 +832,37 @@ public class WsServer extends WsServerBase {
       log.debug(String.format("Session properties: %s", connection.getProperties()));
       log.debug(String.format("Session claims: %s", connection.getProperties().get("claims")));
 
-      try {
-        log.info(String.format("%s -> %s: ", connection.getUserID(), connection.getId()));
-        connection.getSession().getBasicRemote().sendText(Json.stringify(response));
-
-        log.info("Successfully sent");
-      } catch (IOException e) { // Close any problematic connections, they may also already be closed
-        WsUtils.closeSession(connection.getSession(), CloseReason.CloseCodes.UNEXPECTED_CONDITION);
+      log.info(String.format("%s -> %s: ", connection.getUserID(), connection.getId()));
+      if (coalesce) {
+        WsServer.coalescer.send(connection, frame);
+      } else if (connection.send(frame)) {
+        log.info("Successfully queued");
       }
     }
   }
 
   /**
-   * Subscribe a connection (the creator) for newly created channel.
+   * Subscribe the connections of a user (the creator) for newly created channel.
    * This is called when a channel is created, initiation of all subscriptions for
    * a connection is done when a websocket connection is opened.
    *
    * New channels are created with the REST api as there is no need to broadcast
    * any messages when a channel has been created.
    *
-   * @param userId User ID associated with a connection
-   * @param channelId Channel ID assoicated with user and connection
+   * @param userId User ID associated with the connections
+   * @param channelId Channel ID assoicated with user and connections
+   * @return amount of connections subscribed
    */
-  public void subscribeNewChannel(String userId, String channelId) {
-    var connection = WsServer.userIdToConnection.get(userId);
-    if (connection == null) {
-      new RuntimeException("Could not find an active connection for user with ID: " + userId).printStackTrace();
-    } else {
-      WsServer.channelIdToConnections.computeIfAbsent(channelId, k -> new HashSet<>()).add(connection);
+  public int subscribeNewChannel(String userId, String channelId) {
+    var subscribed = 0;
+    for (var connection : WsServer.registry.getConnections(userId)) {
+      if (WsServer.registry.subscribe(connection, channelId)) {
+        subscribed++;
+      }
     }
+
+    // Connections of the user on other nodes (subscribing again is harmless)
+    bus.publish(event("user-subscribe", channelId, userId, null));
+    return subscribed;
   }
 }
@@ -0,0 +1,548 @@
+package websocket.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+import datastructures.ImageData;
+import datastructures.WsActionRequest;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Incremental (non-blocking) parser of actions streamed from a client. Chunks are
+ * fed to the parser as they arrive, so a message is never assembled as a whole.
+ *
+ * Embedded images (base64 data URLs in the fields "image" and "profileImageData")
+ * of JSON messages are picked out of the bytes before they reach the parser and
+ * decoded chunk by chunk as they arrive into a pooled buffer (see {@link DataUrlScanner}),
+ * so neither the base64 nor the characters of it are ever held as a whole. The field
+ * will instead hold an {@link ImageData}. A Smile message has its strings buffered by
+ * the parser as usual, a data URL of an image field is then decoded from the characters
+ * buffered by the parser (Smile clients are better off sending binary image frames).
+ *
+ * A message may also be a binary image frame, which avoids the overhead of base64
+ * (about a third larger) and all decoding, it is laid out as:
+ *
+ *   [0x01][header length: 4 bytes, big-endian][header: JSON action][raw image bytes]
+ *
+ * The header is an ordinary action (without the image) that may specify the
+ * "imageFormat" (defaults to "jpeg"), the raw image bytes are collected in a pooled
+ * buffer and attached to the action as an {@link ImageData}; as "content.image" of
+ * the data for a "message" and as "profileImageData" for a "profile-update".
+ * JSON (or Smile) messages can never start with 0x01, so both kinds of messages are
+ * accepted on the same connection.
+ *
+ * Messages are JSON, or Smile if negotiated by the connection (see {@link WsCodec}),
+ * the header of a binary image frame is in the same format.
+ *
+ * There is one parser per session (a session never streams concurrently).
+ *
+ * References:
+ * https://cowtowncoder.medium.com/jackson-2-9-non-blocking-json-parsing-a4ad5a9e63cb
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class ActionParser {
+  // Heavily used to test the expression:
+  // https://www.freeformatter.com/java-regex-tester.html
+  private static final Pattern BASE64_META_PATTERN = Pattern.compile("data:image/(?<format>\\w+)(?:\\+\\w+)?;base64");
+  private static final Pattern IMAGE_FORMAT_PATTERN = Pattern.compile("\\w+"); // As in a data URL
+  private static final String DATA_URL_PREFIX = "data:image/";
+  private static final Set<String> IMAGE_FIELDS = Set.of("image", "profileImageData");
+
+  public static final byte BINARY_IMAGE_FRAME = 0x01;
+  private static final int BINARY_PREFIX_SIZE = 5; // Type and header length
+
+  private static final int SCRATCH_SIZE = 8192;
+
+  private final byte[] scratch = new byte[SCRATCH_SIZE];
+  private final JsonFactory factory;
+  private final int maxMessageSize;
+  private final FrameAssembler image;
+  private final DataUrlScanner scanner;
+  private final boolean text; // If the format is JSON, which is scanned for images
+
+  private JsonParser parser;
+  private boolean binary; // If message is a binary image frame
+  private int prefixRead; // Bytes read of the binary prefix
+  private int headerRemaining; // Bytes remaining of the binary header
+  private Deque<Object> containers = new ArrayDeque<>(); // Maps and lists being built
+  private Deque<String> fieldNames = new ArrayDeque<>(); // Field names of the parents
+  private String fieldName;
+  private Object root;
+  private int size;
+  private boolean overflow;
+  private boolean failed;
+
+  /**
+   * Constructor.
+   * @param maxMessageSize Max size of a message in bytes
+   * @param pool Pool of buffers for raw image bytes of binary image frames
+   * @param factory Factory of non-blocking parsers of the format (JSON or Smile)
+   */
+  public ActionParser(int maxMessageSize, BufferPool pool, JsonFactory factory) {
+    this.maxMessageSize = maxMessageSize;
+    this.factory = factory;
+    this.image = new FrameAssembler(pool);
+    this.scanner = new DataUrlScanner(IMAGE_FIELDS, image, this::feed);
+    this.text = JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName());
+  }
+
+  /**
+   * Feed a chunk of a message to the parser, the chunk is consumed.
+   * If the message turns out to be malformed an exception is thrown once, the
+   * rest of the message is then ignored.
+   * @param chunk Chunk of data
+   * @param finish If this is the last chunk of the message
+   * @return the parsed action if the message is finished, otherwise null
+   * @throws JsonParseException if the message is malformed or too large
+   */
+  public synchronized WsActionRequest feed(ByteBuffer chunk, boolean finish) throws IOException {
+    if (failed) { // Skip the remainder of a malformed message
+      if (finish) {
+        reset();
+      }
+      return null;
+    }
+
+    try {
+      if (!overflow) {
+        size += chunk.remaining();
+        overflow = size > maxMessageSize;
+      }
+
+      if (!overflow) {
+        if (parser == null) {
+          parser = factory.createNonBlockingByteArrayParser();
+          binary = chunk.hasRemaining() && chunk.get(chunk.position()) == BINARY_IMAGE_FRAME;
+        }
+
+        if (binary) {
+          feedBinary(chunk);
+        } else {
+          feedJson(chunk);
+        }
+      }
+
+      if (!finish) {
+        return null;
+      }
+
+      if (overflow) {
+        throw new JsonParseException(parser, String.format("Message exceeds %s bytes", maxMessageSize));
+      }
+
+      ((ByteArrayFeeder)parser.getNonBlockingInputFeeder()).endOfInput();
+      while (parser.nextToken() != null) {
+        consume(parser.currentToken());
+      }
+
+      var action = toAction(root);
+      if (binary) {
+        attachImage(action);
+      }
+      return action;
+    } catch (IOException | RuntimeException e) {
+      reset();
+      failed = !finish;
+      throw e;
+    } finally {
+      if (finish) {
+        reset();
+      }
+    }
+  }
+
+  /**
+   * Feed a chunk of JSON (or Smile) to the parser.
+   * @param chunk Chunk of data
+   */
+  private void feedJson(ByteBuffer chunk) throws IOException {
+    if (chunk.hasArray()) {
+      var offset = chunk.arrayOffset() + chunk.position();
+      scan(chunk.array(), offset, offset + chunk.remaining());
+      chunk.position(chunk.limit());
+    } else {
+      while (chunk.hasRemaining()) { // Direct buffer, feed it through a scratch array
+        var length = Math.min(chunk.remaining(), scratch.length);
+        chunk.get(scratch, 0, length);
+        scan(scratch, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Feed bytes through the scanner of images if JSON, otherwise straight to the parser.
+   * @param data Data
+   * @param start Start offset
+   * @param end End offset (exclusive)
+   */
+  private void scan(byte[] data, int start, int end) throws IOException {
+    if (text) {
+      scanner.scan(data, start, end);
+    } else {
+      feed(data, start, end);
+    }
+  }
+
+  /**
+   * Feed a chunk of a binary image frame; the prefix, the header (to the parser)
+   * and then the raw image bytes.
+   * @param chunk Chunk of data
+   */
+  private void feedBinary(ByteBuffer chunk) throws IOException {
+    while (prefixRead < BINARY_PREFIX_SIZE && chunk.hasRemaining()) {
+      var value = chunk.get() & 0xFF;
+      if (prefixRead > 0) { // First byte is the frame type
+        headerRemaining = (headerRemaining << 8) | value;
+      }
+      prefixRead++;
+    }
+
+    if (headerRemaining < 0 || (prefixRead == BINARY_PREFIX_SIZE && headerRemaining > maxMessageSize)) {
+      throw new JsonParseException(parser, "Binary image frame has an invalid header length");
+    }
+
+    if (headerRemaining > 0 && chunk.hasRemaining()) {
+      var header = chunk.duplicate();
+      header.limit(header.position() + Math.min(headerRemaining, header.remaining()));
+      headerRemaining -= header.remaining();
+      chunk.position(header.limit());
+      feedJson(header);
+    }
+
+    if (headerRemaining == 0 && chunk.hasRemaining()) {
+      image.append(chunk);
+    }
+  }
+
+  /**
+   * Attach the raw image bytes of a binary image frame to its action.
+   * @param action Action parsed from the header
+   */
+  @SuppressWarnings("unchecked")
+  private void attachImage(WsActionRequest action) throws IOException {
+    if (prefixRead < BINARY_PREFIX_SIZE || headerRemaining > 0) {
+      throw new JsonParseException(parser, "Binary image frame is truncated");
+    }
+
+    var buffer = image.complete();
+    try {
+      if (buffer == null || !buffer.hasRemaining()) {
+        throw new JsonParseException(parser, "Binary image frame has no image");
+      }
+
+      var data = new byte[buffer.remaining()];
+      buffer.get(data);
+
+      // The format ends up in the path and URL of the stored image
+      var format = root instanceof Map ? ((Map<String, Object>)root).get("imageFormat") : null;
+      var imageFormat = format instanceof String ? ((String)format).strip() : "jpeg";
+      if (!IMAGE_FORMAT_PATTERN.matcher(imageFormat).matches()) {
+        throw new JsonParseException(parser, "Binary image frame has an invalid image format");
+      }
+      var imageData = new ImageData(imageFormat, data);
+
+      if (action.data == null) {
+        action.data = new LinkedHashMap<>();
+      }
+
+      switch (String.valueOf(action.type)) {
+        case "message": {
+          var content = action.data.get("content");
+          if (!(content instanceof Map)) {
+            content = new LinkedHashMap<String, Object>();
+            action.data.put("content", content);
+          }
+          ((Map<String, Object>)content).put("image", imageData);
+          action.data.put("type", "image");
+          break;
+        }
+        case "profile-update": {
+          action.data.put("profileImageData", imageData);
+          break;
+        }
+        default: {
+          throw new JsonParseException(parser, String.format("Action %s does not take an image", action.type));
+        }
+      }
+    } finally {
+      image.release(buffer);
+    }
+  }
+
+  /**
+   * Discard any partially parsed message.
+   */
+  public synchronized void reset() {
+    if (parser != null) {
+      try {
+        parser.close();
+      } catch (IOException e) {
+        // Nothing to release, there is no underlying input
+      }
+    }
+    parser = null;
+    containers = new ArrayDeque<>();
+    fieldNames = new ArrayDeque<>();
+    fieldName = null;
+    root = null;
+    size = 0;
+    overflow = false;
+    failed = false;
+    binary = false;
+    prefixRead = 0;
+    headerRemaining = 0;
+    scanner.reset();
+    image.reset();
+  }
+
+  /**
+   * Feed bytes and consume all tokens that are available, the array is not
+   * referenced by the parser when this returns.
+   * @param data Data
+   * @param start Start offset
+   * @param end End offset (exclusive)
+   */
+  private void feed(byte[] data, int start, int end) throws IOException {
+    ((ByteArrayFeeder)parser.getNonBlockingInputFeeder()).feedInput(data, start, end);
+    JsonToken token;
+    while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+      consume(token);
+    }
+  }
+
+  /**
+   * Build the parsed structure from a token.
+   * @param token Token
+   */
+  private void consume(JsonToken token) throws IOException {
+    switch (token) {
+      case START_OBJECT:
+      case START_ARRAY: {
+        fieldNames.push(fieldName == null ? "" : fieldName);
+        containers.push(token == JsonToken.START_OBJECT ? new LinkedHashMap<String, Object>() : new ArrayList<Object>());
+        fieldName = null;
+        return;
+      }
+      case END_OBJECT:
+      case END_ARRAY: {
+        var container = containers.pop();
+        var name = fieldNames.pop();
+        fieldName = name.isEmpty() ? null : name;
+        add(container);
+        return;
+      }
+      case FIELD_NAME: {
+        fieldName = parser.getCurrentName();
+        return;
+      }
+      case VALUE_STRING: {
+        add(isImageField() ? readString() : parser.getText());
+        return;
+      }
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT: {
+        add(parser.getNumberValue());
+        return;
+      }
+      case VALUE_TRUE:
+      case VALUE_FALSE: {
+        add(parser.getBooleanValue());
+        return;
+      }
+      case VALUE_NULL: {
+        add(null);
+        return;
+      }
+      case VALUE_EMBEDDED_OBJECT: { // Binary data (Smile)
+        add(parser.getEmbeddedObject());
+        return;
+      }
+      default: {
+        return; // Nothing else is expected
+      }
+    }
+  }
+
+  /**
+   * Add a value to the container being built (or as root).
+   * @param value Value
+   */
+  @SuppressWarnings("unchecked")
+  private void add(Object value) {
+    var container = containers.peek();
+    if (container == null) {
+      root = value;
+    } else if (container instanceof Map) {
+      ((Map<String, Object>)container).put(fieldName, value);
+      fieldName = null;
+    } else {
+      ((List<Object>)container).add(value);
+    }
+  }
+
+  /**
+   * Whether the current string value is of a field that may contain an image.
+   * @return if image field
+   */
+  private boolean isImageField() {
+    return fieldName != null && containers.peek() instanceof Map && IMAGE_FIELDS.contains(fieldName);
+  }
+
+  /**
+   * Read current string value of an image field; an image already decoded by the scanner,
+   * an image decoded from the characters if it is a data URL, or the string value.
+   * @return the image or the string value
+   */
+  private Object readString() throws IOException {
+    var chars = parser.getTextCharacters();
+    var offset = parser.getTextOffset();
+    var length = parser.getTextLength();
+
+    if (startsWith(chars, offset, length, DATA_URL_PREFIX)) {
+      return decodeDataUrl(chars, offset, length);
+    }
+
+    var value = parser.getText();
+    var decoded = scanner.take(value);
+    return decoded != null ? decoded : value;
+  }
+
+  /**
+   * Whether characters start with a prefix.
+   * @param chars Characters
+   * @param offset Offset
+   * @param length Length
+   * @param prefix Prefix
+   * @return if starting with prefix
+   */
+  private static boolean startsWith(char[] chars, int offset, int length, String prefix) {
+    if (length < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (chars[offset + i] != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decode a base64 data URL (e.g. "data:image/png;base64,iVBORw...") into an image.
+   * @param chars Characters
+   * @param offset Offset of the data URL
+   * @param length Length of the data URL
+   * @return meta and binary data of image
+   */
+  public static ImageData decodeDataUrl(char[] chars, int offset, int length) throws IOException {
+    var end = offset + length;
+    var separator = offset;
+    while (separator < end && chars[separator] != ',') {
+      separator++;
+    }
+    if (separator == end) {
+      throw new IOException("Image data URL is missing data");
+    }
+
+    // The base64 meta description will look something like "data:image/jpeg;base64",
+    // or even "data:image/svg+xml;base64" depending on format, use a regular expression
+    // to retrieve this using a named capture group
+    var meta = new String(chars, offset, separator - offset);
+    var matcher = BASE64_META_PATTERN.matcher(meta);
+    var format = matcher.find() ? matcher.group("format") : "jpeg"; // Default to "jpeg"
+
+    var start = separator + 1;
+    var padding = 0;
+    for (int i = end - 1; i >= start && chars[i] == '=' && padding < 2; i--) {
+      padding++;
+    }
+    var decodedSize = (end - start) / 4 * 3 - padding;
+    if ((end - start) % 4 != 0 || decodedSize < 0) {
+      throw new IOException("Image data URL has malformed base64 data");
+    }
+
+    var data = new byte[decodedSize];
+    try (var in = Base64.getDecoder().wrap(new AsciiInputStream(chars, start, end))) {
+      if (in.readNBytes(data, 0, decodedSize) != decodedSize) {
+        throw new IOException("Image data URL has truncated base64 data");
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Image data URL has malformed base64 data", e);
+    }
+    return new ImageData(format.strip(), data);
+  }
+
+  /**
+   * Transform the parsed structure into an action.
+   * @param value Parsed root value
+   * @return action
+   */
+  @SuppressWarnings("unchecked")
+  private WsActionRequest toAction(Object value) throws JsonParseException {
+    if (!(value instanceof Map)) {
+      throw new JsonParseException(parser, "Action must be an object");
+    }
+    var map = (Map<String, Object>)value;
+    var data = map.get("data");
+
+    var action = new WsActionRequest();
+    action.type = map.get("type") instanceof String ? (String)map.get("type") : null;
+    action.data = data instanceof Map ? (Map<String, Object>)data : null;
+    return action;
+  }
+
+  /**
+   * An input stream reading ASCII characters as bytes, without copying them.
+   */
+  private static class AsciiInputStream extends InputStream {
+    private final char[] chars;
+    private final int end;
+    private int position;
+
+    private AsciiInputStream(char[] chars, int start, int end) {
+      this.chars = chars;
+      this.position = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read() {
+      return position < end ? toByte(chars[position++]) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (position >= end) {
+        return -1;
+      }
+      var count = Math.min(len, end - position);
+      for (int i = 0; i < count; i++) {
+        b[off + i] = (byte)toByte(chars[position++]);
+      }
+      return count;
+    }
+
+    /** Non ASCII characters are never valid base64, map them to an invalid one */
+    private static int toByte(char c) {
+      return c < 0x80 ? c : '!';
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package websocket.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * A pool of reusable direct byte buffers in size classes of powers of two.
+ * Buffers are taken from and returned to the pool instead of allocating new
+ * arrays for every (partial) message received, the pool only retains buffers
+ * up to a total amount of bytes, anything beyond that is left to the GC.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class BufferPool {
+  private static final int MIN_SIZE_SHIFT = 13; // 8 KB
+  private static final int MAX_SIZE_SHIFT = 20; // 1 MB
+  private static final long MAX_RETAINED = Long.getLong("WS_BUFFER_POOL_BYTES", 16L * 1024 * 1024);
+
+  private static final BufferPool instance = new BufferPool();
+
+  private final List<Queue<ByteBuffer>> classes;
+  private final AtomicLong retained = new AtomicLong();
+
+  /** Private constructor */
+  private BufferPool() {
+    classes = new ArrayList<>(MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1);
+    for (int i = MIN_SIZE_SHIFT; i <= MAX_SIZE_SHIFT; i++) {
+      classes.add(new ConcurrentLinkedQueue<>());
+    }
+  }
+
+  /* Get singleton instance */
+  public static BufferPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Acquire a cleared buffer with at least the given capacity.
+   * @param capacity Minimum capacity in bytes
+   * @return buffer
+   */
+  public ByteBuffer acquire(int capacity) {
+    var index = sizeClass(capacity);
+    if (index >= classes.size()) { // Larger than any pooled size, do not pool
+      return ByteBuffer.allocateDirect(capacity);
+    }
+
+    var buffer = classes.get(index).poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(1 << (index + MIN_SIZE_SHIFT));
+    }
+    retained.addAndGet(-buffer.capacity());
+    return buffer.clear();
+  }
+
+  /**
+   * Return a buffer to the pool, it must not be used after being released.
+   * @param buffer Buffer acquired from the pool
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1) {
+      return;
+    }
+
+    var index = sizeClass(buffer.capacity());
+    if (index >= classes.size() || retained.addAndGet(buffer.capacity()) > MAX_RETAINED) {
+      retained.addAndGet(-buffer.capacity()); // Pool is full, let the GC have it
+      return;
+    }
+    classes.get(index).add(buffer);
+  }
+
+  /**
+   * Get the size class index for a capacity.
+   * @param capacity Capacity in bytes
+   * @return size class index
+   */
+  private static int sizeClass(int capacity) {
+    var shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1); // Round up to power of two
+    return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+  }
+}
@@ -0,0 +1,344 @@
+package websocket.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+import datastructures.ImageData;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Scans JSON text as it arrives, before it reaches the parser, for base64 data URLs
+ * (e.g. "data:image/png;base64,iVBORw...") in the string values of some fields. The
+ * base64 of such a value is decoded chunk by chunk, as it arrives, into a pooled buffer
+ * and never handed to the parser; the parser is instead handed a short placeholder
+ * string, which is exchanged for the decoded image through {@link #take(String)}.
+ *
+ * Only enough of JSON is understood to find the values; strings (with their escapes),
+ * and a string followed by ":" being a field name. Anything else is passed through
+ * untouched and left to the parser to validate. A value that turns out not to be a
+ * base64 data URL (or uses escapes in its meta description) is also passed through
+ * as is. Within base64 the JSON escape "\/" is decoded as "/".
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+class DataUrlScanner {
+  private static final Pattern BASE64_META_PATTERN = Pattern.compile("^data:image/(?<format>\\w+)(?:\\+\\w+)?;base64$");
+  private static final byte[] DATA_URL_PREFIX = "data:image/".getBytes(StandardCharsets.US_ASCII);
+  private static final String PLACEHOLDER_PREFIX = "\u0001image:";
+  private static final int MAX_NAME_LENGTH = 32; // Longer strings are never a field of interest
+  private static final int MAX_META_LENGTH = 64; // E.g. "data:image/svg+xml;base64"
+  private static final int[] BASE64 = createBase64Table();
+
+  /** Bytes passed through to the parser */
+  interface Sink {
+    void feed(byte[] data, int start, int end) throws IOException;
+  }
+
+  private enum State {
+    OUTSIDE, // Outside of any string
+    STRING, // Within a string that is passed through
+    STRING_ESCAPE, // Escape within a string that is passed through
+    META, // Within the meta description of a possible data URL, held back
+    BASE64, // Within the base64 of a data URL, decoded
+    BASE64_ESCAPE // Escape within the base64 of a data URL
+  }
+
+  private final Set<String> fields;
+  private final FrameAssembler image;
+  private final Sink sink;
+
+  private final byte[] held = new byte[MAX_META_LENGTH + 2]; // Opening quote, meta and ","
+  private final byte[] decoded = new byte[3 * 1024];
+  private final StringBuilder name = new StringBuilder(MAX_NAME_LENGTH);
+  private final Map<String, ImageData> images = new HashMap<>();
+
+  private State state = State.OUTSIDE;
+  private boolean nameValid; // Whether the string being passed through may be a field of interest
+  private String lastString; // Last string passed through, if it may be a field of interest
+  private boolean imageValue; // Whether the next value is of a field of interest
+  private int heldLength;
+  private int imageCount; // Images decoded, to name their placeholders
+  private String format;
+  private int bits; // Bits of the current base64 quantum
+  private int count; // Characters of the current base64 quantum
+  private int padding;
+  private int decodedLength;
+
+  /**
+   * Constructor.
+   * @param fields Names of the fields that may contain an image
+   * @param image Assembler of decoded images
+   * @param sink Parser fed with the bytes that are passed through
+   */
+  DataUrlScanner(Set<String> fields, FrameAssembler image, Sink sink) {
+    this.fields = fields;
+    this.image = image;
+    this.sink = sink;
+  }
+
+  /**
+   * Scan bytes, passing through anything but the base64 data URLs of the fields. The
+   * array is not referenced when this returns.
+   * @param data Data
+   * @param start Start offset
+   * @param end End offset (exclusive)
+   */
+  void scan(byte[] data, int start, int end) throws IOException {
+    var from = state == State.META || state == State.BASE64 || state == State.BASE64_ESCAPE ? -1 : start;
+    for (int i = start; i < end; i++) {
+      var b = data[i];
+      switch (state) {
+        case OUTSIDE: {
+          if (b == '"' && imageValue) {
+            pass(data, from, i); // Hold back the value until it is known to be a data URL
+            from = -1;
+            imageValue = false;
+            held[0] = b;
+            heldLength = 1;
+            state = State.META;
+          } else if (b == '"') {
+            name.setLength(0);
+            nameValid = true;
+            lastString = null;
+            state = State.STRING;
+          } else if (b == ':') {
+            imageValue = lastString != null && fields.contains(lastString);
+            lastString = null;
+          } else if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+            imageValue = false;
+            lastString = null;
+          }
+          break;
+        }
+        case STRING: {
+          if (b == '\\') {
+            nameValid = false;
+            state = State.STRING_ESCAPE;
+          } else if (b == '"') {
+            lastString = nameValid ? name.toString() : null;
+            state = State.OUTSIDE;
+          } else if (nameValid && name.length() < MAX_NAME_LENGTH) {
+            name.append((char)(b & 0xFF));
+          } else {
+            nameValid = false;
+          }
+          break;
+        }
+        case STRING_ESCAPE: {
+          state = State.STRING;
+          break;
+        }
+        case META: {
+          if (!hold(b)) {
+            // Not a base64 data URL, pass through what has been held and continue with
+            // the current byte within the string (the held bytes has no quotes or escapes)
+            pass(held, 0, heldLength);
+            from = i;
+            nameValid = false;
+            state = State.STRING;
+            i--;
+          }
+          break;
+        }
+        case BASE64: {
+          if (b == '"') {
+            complete();
+            from = i + 1;
+            lastString = null;
+            state = State.OUTSIDE;
+          } else if (b == '\\') {
+            state = State.BASE64_ESCAPE;
+          } else {
+            decode(b);
+          }
+          break;
+        }
+        case BASE64_ESCAPE: {
+          if (b == '/') {
+            decode(b);
+          } else if (b != 'n' && b != 'r') { // Line breaks are allowed (and ignored) in base64
+            throw new JsonParseException(null, "Image data URL has malformed base64 data");
+          }
+          state = State.BASE64;
+          break;
+        }
+      }
+    }
+
+    if (from >= 0) { // Start of bytes to pass through, -1 if held back or decoded
+      pass(data, from, end);
+    }
+  }
+
+  /**
+   * Pass bytes through to the parser, if any.
+   * @param data Data
+   * @param start Start offset
+   * @param end End offset (exclusive)
+   */
+  private void pass(byte[] data, int start, int end) throws IOException {
+    if (start < end) {
+      sink.feed(data, start, end);
+    }
+  }
+
+  /**
+   * Take a decoded image by its placeholder.
+   * @param placeholder String value handed to the parser
+   * @return image, or null if the value is not a placeholder of an image
+   */
+  ImageData take(String placeholder) {
+    return placeholder.startsWith(PLACEHOLDER_PREFIX) ? images.remove(placeholder) : null;
+  }
+
+  /**
+   * Forget anything scanned.
+   */
+  void reset() {
+    state = State.OUTSIDE;
+    nameValid = false;
+    lastString = null;
+    imageValue = false;
+    heldLength = 0;
+    imageCount = 0;
+    format = null;
+    bits = 0;
+    count = 0;
+    padding = 0;
+    decodedLength = 0;
+    images.clear();
+  }
+
+  /**
+   * Hold back a byte of the meta description of a possible data URL.
+   * @param b Byte
+   * @return false if the value is not a base64 data URL
+   */
+  private boolean hold(byte b) {
+    if (b == '"' || b == '\\' || heldLength == held.length) {
+      return false;
+    }
+
+    var prefixIndex = heldLength - 1;
+    if (prefixIndex < DATA_URL_PREFIX.length && b != DATA_URL_PREFIX[prefixIndex]) {
+      return false;
+    }
+    held[heldLength++] = b;
+
+    if (b == ',') {
+      var meta = new String(held, 1, heldLength - 2, StandardCharsets.US_ASCII);
+      var matcher = BASE64_META_PATTERN.matcher(meta);
+      if (!matcher.find()) {
+        heldLength--; // The "," is passed through as the current byte
+        return false;
+      }
+      format = matcher.group("format").strip();
+      state = State.BASE64;
+    }
+    return true;
+  }
+
+  /**
+   * Decode a base64 character.
+   * @param b Character
+   */
+  private void decode(byte b) throws IOException {
+    if (b == '=') {
+      if (count < 2) {
+        throw new JsonParseException(null, "Image data URL has malformed base64 data");
+      }
+      padding++;
+      bits <<= 6;
+    } else {
+      var value = b < 0 ? -1 : BASE64[b];
+      if (value < 0 || padding > 0) {
+        throw new JsonParseException(null, "Image data URL has malformed base64 data");
+      }
+      bits = (bits << 6) | value;
+    }
+
+    if (++count == 4) {
+      output((byte)(bits >> 16));
+      if (padding < 2) {
+        output((byte)(bits >> 8));
+      }
+      if (padding < 1) {
+        output((byte)bits);
+      }
+      bits = 0;
+      count = 0;
+    }
+  }
+
+  /**
+   * Output a decoded byte, passing them on to the assembler in chunks.
+   * @param b Byte
+   */
+  private void output(byte b) throws IOException {
+    if (decodedLength == decoded.length) {
+      flush();
+    }
+    decoded[decodedLength++] = b;
+  }
+
+  /**
+   * Pass on decoded bytes to the assembler.
+   */
+  private void flush() throws IOException {
+    if (decodedLength > 0 && !image.append(ByteBuffer.wrap(decoded, 0, decodedLength))) {
+      throw new JsonParseException(null, String.format("Image exceeds %s bytes", FrameAssembler.MAX_MESSAGE_SIZE));
+    }
+    decodedLength = 0;
+  }
+
+  /**
+   * Complete a decoded image and hand a placeholder to the parser instead.
+   */
+  private void complete() throws IOException {
+    if (count != 0) {
+      throw new JsonParseException(null, "Image data URL has truncated base64 data");
+    }
+    flush();
+
+    var buffer = image.complete();
+    try {
+      if (buffer == null || !buffer.hasRemaining()) {
+        throw new JsonParseException(null, "Image data URL is missing data");
+      }
+      var data = new byte[buffer.remaining()];
+      buffer.get(data);
+
+      var placeholder = PLACEHOLDER_PREFIX + imageCount;
+      images.put(placeholder, new ImageData(format, data));
+
+      var value = String.format("\"\\u0001image:%s\"", imageCount++).getBytes(StandardCharsets.US_ASCII);
+      sink.feed(value, 0, value.length);
+    } finally {
+      image.release(buffer);
+    }
+    padding = 0;
+  }
+
+  /**
+   * Create a lookup table of base64 characters to their values, -1 for invalid characters.
+   * @return table
+   */
+  private static int[] createBase64Table() {
+    var table = new int[128];
+    Arrays.fill(table, -1);
+    var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      table[alphabet.charAt(i)] = i;
+    }
+    return table;
+  }
+}
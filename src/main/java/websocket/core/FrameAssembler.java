@@ -0,0 +1,92 @@
+package websocket.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Assembles a message streamed in partial frames into one buffer. There is
+ * one assembler per session (a session never streams concurrently), the buffer
+ * is taken from a {@link BufferPool} and grown by doubling so a message is only
+ * copied a logarithmic amount of times, instead of once per chunk.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class FrameAssembler {
+  public static final int MAX_MESSAGE_SIZE = 1024000;
+
+  private final BufferPool pool;
+  private ByteBuffer buffer;
+  private boolean overflow;
+
+  /**
+   * Constructor.
+   * @param pool Pool to acquire buffers from
+   */
+  public FrameAssembler(BufferPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Append a chunk of data, the chunk is consumed.
+   * @param chunk Partial data of a message
+   * @return false if the message has exceeded the max message size
+   */
+  public synchronized boolean append(ByteBuffer chunk) {
+    if (overflow) {
+      return false;
+    }
+
+    var size = (buffer == null ? 0 : buffer.position()) + chunk.remaining();
+    if (size > MAX_MESSAGE_SIZE) {
+      overflow = true;
+      return false;
+    }
+
+    if (buffer == null) {
+      buffer = pool.acquire(chunk.remaining());
+    } else if (buffer.remaining() < chunk.remaining()) {
+      var grown = pool.acquire(Math.max(size, buffer.capacity() * 2));
+      grown.put(buffer.flip());
+      pool.release(buffer);
+      buffer = grown;
+    }
+    buffer.put(chunk);
+    return true;
+  }
+
+  /**
+   * Complete the message, the returned buffer is ready to be read and must be
+   * handed back through {@link #release(ByteBuffer)} once it has been processed.
+   * @return assembled message, or null if it exceeded the max message size
+   */
+  public synchronized ByteBuffer complete() {
+    var message = buffer;
+    var exceeded = overflow;
+    buffer = null;
+    overflow = false;
+
+    if (exceeded) {
+      pool.release(message);
+      return null;
+    }
+    return message == null ? ByteBuffer.allocate(0) : message.flip();
+  }
+
+  /**
+   * Hand back a completed message buffer.
+   * @param message Buffer returned by {@link #complete()}
+   */
+  public void release(ByteBuffer message) {
+    pool.release(message);
+  }
+
+  /**
+   * Discard any partially assembled message (when the session is closed).
+   */
+  public synchronized void reset() {
+    pool.release(buffer);
+    buffer = null;
+    overflow = false;
+  }
+}
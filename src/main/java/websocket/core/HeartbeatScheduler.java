@@ -0,0 +1,213 @@
+package websocket.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * A shared heartbeat scheduler sending pings (keep-alive) to all sessions and
+ * reaping sessions that has been idle for too long.
+ *
+ * Implemented as a hashed timer wheel; one thread ticks the wheel and hands
+ * due heartbeats over to a few worker threads (a ping may block on a slow client).
+ * Scheduling and cancelling is constant time regardless of the amount of sessions.
+ * Each ping is scheduled with some jitter so sessions opened at the same time
+ * (reconnecting after a deploy for example) do not all get pinged in bursts.
+ *
+ * References:
+ * http://www.cs.columbia.edu/~nahum/w6998/papers/sosp87-timing-wheels.pdf
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class HeartbeatScheduler {
+  private static final Logger log = LogManager.getLogger(HeartbeatScheduler.class);
+
+  private static final int WHEEL_SIZE = 512;
+  private static final long TICK_MILLIS = 100;
+
+  private final long intervalMillis;
+  private final long idleTimeoutMillis;
+  private final Consumer<Session> ping;
+
+  private final List<Queue<Heartbeat>> wheel;
+  private final ConcurrentHashMap<String, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+  private final ExecutorService workers;
+  private volatile long tick;
+
+  /**
+   * A scheduled heartbeat of a session.
+   */
+  private static class Heartbeat {
+    private final Session session;
+    private volatile long lastSeen = System.currentTimeMillis();
+    private volatile boolean cancelled;
+    private long rounds; // Remaining revolutions of the wheel, only accessed by the ticking thread
+
+    private Heartbeat(Session session) {
+      this.session = session;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param interval Interval between pings in seconds
+   * @param idleTimeout Seconds without any sign of life from a session before it is closed
+   * @param threads Amount of worker threads sending pings
+   * @param ping Sends a ping to a session
+   */
+  public HeartbeatScheduler(long interval, long idleTimeout, int threads, Consumer<Session> ping) {
+    this.intervalMillis = TimeUnit.SECONDS.toMillis(interval);
+    this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeout);
+    this.ping = ping;
+
+    this.wheel = new ArrayList<>(WHEEL_SIZE);
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      this.wheel.add(new ConcurrentLinkedQueue<>());
+    }
+
+    var threadCount = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+      var thread = new Thread(runnable, "heartbeat-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    var ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "heartbeat-ticker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleAtFixedRate(this::onTick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start sending heartbeats to a session, the first one at a random point within
+   * the first interval so that pings are spread out evenly.
+   * @param session Websocket session
+   */
+  public void start(Session session) {
+    var heartbeat = new Heartbeat(session);
+    var previous = heartbeats.put(session.getId(), heartbeat);
+    if (previous != null) {
+      previous.cancelled = true;
+    }
+    schedule(heartbeat, ThreadLocalRandom.current().nextLong(intervalMillis) + TICK_MILLIS);
+  }
+
+  /**
+   * Stop sending heartbeats to a session. The heartbeat is lazily removed from
+   * the wheel when it is due.
+   * @param session Websocket session
+   */
+  public void stop(Session session) {
+    var heartbeat = heartbeats.remove(session.getId());
+    if (heartbeat != null) {
+      heartbeat.cancelled = true;
+    }
+  }
+
+  /**
+   * Mark a session as alive (a pong or any other message has been received).
+   * @param session Websocket session
+   */
+  public void touch(Session session) {
+    var heartbeat = heartbeats.get(session.getId());
+    if (heartbeat != null) {
+      heartbeat.lastSeen = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Get amount of sessions with scheduled heartbeats.
+   * @return amount of sessions
+   */
+  public int size() {
+    return heartbeats.size();
+  }
+
+  /**
+   * Schedule a heartbeat in the wheel.
+   * @param heartbeat Heartbeat
+   * @param delayMillis Delay in milliseconds
+   */
+  private void schedule(Heartbeat heartbeat, long delayMillis) {
+    // At least two ticks ahead, the bucket of the next tick may already be visited
+    var ticks = Math.max(2, delayMillis / TICK_MILLIS);
+    // A bucket is visited again after a full revolution, a delay of exactly one revolution needs no extra rounds
+    heartbeat.rounds = (ticks - 1) / WHEEL_SIZE;
+    wheel.get((int)((tick + ticks) % WHEEL_SIZE)).add(heartbeat);
+  }
+
+  /**
+   * Advance the wheel one tick and dispatch the heartbeats that are due.
+   */
+  private void onTick() {
+    try {
+      var bucket = wheel.get((int)(++tick % WHEEL_SIZE));
+      var pending = bucket.size(); // Only visit those that were there from the start
+      for (int i = 0; i < pending; i++) {
+        var heartbeat = bucket.poll();
+        if (heartbeat == null) {
+          break;
+        }
+        if (heartbeat.cancelled) {
+          continue; // Drop it from the wheel
+        }
+        if (heartbeat.rounds > 0) {
+          heartbeat.rounds--;
+          bucket.add(heartbeat); // Not due in this revolution
+          continue;
+        }
+        workers.execute(() -> beat(heartbeat));
+      }
+    } catch (Exception e) { // Never let the ticking thread die
+      log.error("Heartbeat tick failed", e);
+    }
+  }
+
+  /**
+   * Reap the session if idle for too long, otherwise ping it and schedule next heartbeat.
+   * @param heartbeat Heartbeat
+   */
+  private void beat(Heartbeat heartbeat) {
+    if (heartbeat.cancelled) {
+      return;
+    }
+
+    var session = heartbeat.session;
+    if (!session.isOpen()) {
+      stop(session);
+      return;
+    }
+
+    var idle = System.currentTimeMillis() - heartbeat.lastSeen;
+    if (idle > idleTimeoutMillis) {
+      log.info(String.format("Session %s has been idle for %s ms, closing", session.getId(), idle));
+      stop(session);
+      WsUtils.closeSession(session, CloseReason.CloseCodes.GOING_AWAY, "Idle timeout");
+      return;
+    }
+
+    ping.accept(session);
+
+    // Jitter within +/- 10% of the interval
+    var jitter = ThreadLocalRandom.current().nextLong(-intervalMillis / 10, intervalMillis / 10 + 1);
+    schedule(heartbeat, intervalMillis + jitter);
+  }
+}
@@ -0,0 +1,81 @@
+package websocket.core;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import common.Json;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * Encoding of the actions sent over a websocket connection, chosen per connection
+ * by the negotiated subprotocol. Clients that do not request a subprotocol (browsers
+ * that has not opted in) use JSON, sent as text. Clients requesting "chat.smile"
+ * use Smile, a binary JSON format that is smaller and cheaper to parse, sent as binary.
+ *
+ * References:
+ * https://github.com/FasterXML/smile-format-specification
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public enum WsCodec {
+  JSON("", new JsonFactory()),
+  SMILE("chat.smile", new SmileFactory());
+
+  private final String subprotocol;
+  private final JsonFactory factory;
+
+  /**
+   * Constructor.
+   * @param subprotocol Subprotocol selecting the codec
+   * @param factory Factory of (non-blocking) parsers
+   */
+  WsCodec(String subprotocol, JsonFactory factory) {
+    this.subprotocol = subprotocol;
+    this.factory = factory;
+  }
+
+  /**
+   * Get codec of a negotiated subprotocol.
+   * @param subprotocol Negotiated subprotocol, empty or null if none
+   * @return codec
+   */
+  public static WsCodec of(String subprotocol) {
+    return SMILE.subprotocol.equals(subprotocol) ? SMILE : JSON;
+  }
+
+  /**
+   * Get subprotocol selecting the codec.
+   * @return subprotocol
+   */
+  public String getSubprotocol() {
+    return subprotocol;
+  }
+
+  /**
+   * Get factory of parsers for incoming messages.
+   * @return factory
+   */
+  public JsonFactory getFactory() {
+    return factory;
+  }
+
+  /**
+   * Whether messages are sent as binary (otherwise as text).
+   * @return if binary
+   */
+  public boolean isBinary() {
+    return this == SMILE;
+  }
+
+  /**
+   * Encode an object.
+   * @param object Object to be encoded
+   * @return encoded data
+   */
+  public byte[] encode(Object object) throws IOException {
+    return this == SMILE ? Json.encodeSmile(object) : Json.encode(object);
+  }
+}
@@ -2,16 +2,14 @@ package websocket.core;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
-import javax.servlet.http.HttpSession;
+import javax.websocket.Extension;
 import javax.websocket.HandshakeResponse;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpointConfig;
@@ -19,6 +17,8 @@ import javax.websocket.server.ServerEndpointConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import common.Histogram;
+import common.Metrics;
 import io.jsonwebtoken.SignatureException;
 import services.TokenService;
 import websocket.WsServer;
@@ -35,6 +35,13 @@ import websocket.WsServer;
  * 
  * The Websocket service is configured with shared instance for all connections
  * for an easier management of a pool of connections.
+ *
+ * Messages are compressed with permessage-deflate (RFC 7692) if offered by the client,
+ * each connection keeps its own compression context (sliding window) between messages
+ * unless context takeover is disabled, which trades compression ratio for memory.
+ *
+ * Clients may opt in to a binary encoding of the messages by requesting its subprotocol
+ * (see {@link WsCodec}), anything else is JSON.
  * 
  * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
  */
@@ -44,86 +51,218 @@ public class WsConfiguration extends ServerEndpointConfig.Configurator {
   // Reuse the same instance for all connections (Singleton style)
   public static final WsServer SERVER = new WsServer();
 
-  @Override
-  public void modifyHandshake(ServerEndpointConfig config, HandshakeRequest request, HandshakeResponse response) {
-    super.modifyHandshake(config, request, response);
+  // Compression of messages (permessage-deflate)
+  public static final String DEFLATE = "permessage-deflate";
+  private static final boolean DEFLATE_ENABLED = !"false".equalsIgnoreCase(System.getProperty("WS_DEFLATE"));
+  private static final boolean DEFLATE_CONTEXT_TAKEOVER =
+    !"false".equalsIgnoreCase(System.getProperty("WS_DEFLATE_CONTEXT_TAKEOVER"));
+
+  // Internal server host description, resolved once
+  private static final String[] SERVER_IDENTITY = resolveServerIdentity();
+  private static final String SERVER_ADDR = SERVER_IDENTITY[0];
+  private static final String SERVER_NAME = SERVER_IDENTITY[1];
 
-    var session = HttpSession.class.cast(request.getHttpSession());
-    setClaims(request, session);
+  // Cost of handshakes, and handshakes with an invalid token
+  private static final Histogram handshakes = Metrics.histogram("ws.handshake");
+  private static final LongAdder rejected = Metrics.counter("ws.handshake.rejected");
 
+  // Binary encoding of messages (Smile)
+  private static final boolean SMILE_ENABLED = !"false".equalsIgnoreCase(System.getProperty("WS_SMILE"));
+
+  @Override
+  public void modifyHandshake(ServerEndpointConfig config, HandshakeRequest request, HandshakeResponse response) {
+    var started = System.nanoTime();
     try {
-      // Internal server host description
-      var serverHost = InetAddress.getLocalHost();
-      var serverAddr = serverHost.getHostAddress();
-      var serverName = serverHost.getCanonicalHostName();
+      super.modifyHandshake(config, request, response);
 
-      var remoteAddr = String.class.cast(session.getAttribute("remoteAddr"));
+      // The user properties of the configuration are copied for each session by the container,
+      // whatever is set here is available from the opened websocket session
+      var properties = config.getUserProperties();
+      properties.putAll(WsServletListener.getCurrentRequest());
+      setClaims(request, properties);
 
-      log.info(String.format("%s <- between -> %s (%s)", remoteAddr, serverAddr, serverName));
-    } catch (UnknownHostException e) {
-      e.printStackTrace(); // Should not happened
+      if (log.isDebugEnabled()) {
+        log.debug(String.format("%s <- between -> %s (%s)", properties.get("remoteAddr"), SERVER_ADDR, SERVER_NAME));
+      }
+    } finally {
+      handshakes.record(System.nanoTime() - started);
     }
   }
 
-  private void setClaims(HandshakeRequest request, HttpSession session) {
-    var authorizationParameter = WsConfiguration.parseQuery(request.getRequestURI().getQuery()).get("auth");
+  private void setClaims(HandshakeRequest request, Map<String, Object> properties) {
+    properties.remove("claims"); // Only set if valid, a session without claims is rejected when opened
+
+    var authorizationParameter = WsConfiguration.getQueryParameter(request.getRequestURI().getQuery(), "auth");
 
     if (authorizationParameter != null && !authorizationParameter.isEmpty()) {
       try {
-        var claims = TokenService.getInstance().parse(authorizationParameter.get(0));
+        // Reconnecting clients (after a deploy for example) present tokens already validated
+        var claims = TokenService.getInstance().parseCached(authorizationParameter);
 
         if (claims != null) {
-          var properties = new HashMap<String, Object>();
           properties.put("claims", claims);
-          properties.put("id", session.getId());
-          properties.put("remoteHost", String.class.cast(session.getAttribute("remoteHost")));
-          properties.put("remoteAddr", String.class.cast(session.getAttribute("remoteAddr")));
-          properties.put("remotePort", Integer.class.cast(session.getAttribute("remotePort")));
-          properties.put("serverHost", String.class.cast(session.getAttribute("serverHost")));
-          WsRequestDataContext.setCurrentInstance(new WsRequestDataContext(properties));
         }
       } catch (SignatureException e) {
-        e.printStackTrace();
-        var remoteAddr = String.class.cast(session.getAttribute("remoteAddr"));
+        rejected.increment();
+        var remoteAddr = properties.get("remoteAddr");
         log.error(String.format("Invalid JWT signature used by %s", remoteAddr));
       } catch (Exception e) {
-        e.printStackTrace();
+        rejected.increment();
+        log.warn(String.format("Rejected JWT: %s", e.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * Get the value of a query parameter without parsing the whole query.
+   *
+   * Following example will give the value 1 for the name parameter1:
+   * https://www.my-site.com/path/action?parameter1=1&parameter2=2
+   *
+   * @param query Query of the URL
+   * @param name Name of the parameter
+   * @return value of the first occurrence of the parameter, null if not existing
+   */
+  public static String getQueryParameter(String query, String name) {
+    if (query == null) {
+      return null; // No query parameters exists
+    }
+
+    var start = 0;
+    while (start < query.length()) {
+      var end = query.indexOf('&', start); // Delimiter of parameters
+      if (end < 0) {
+        end = query.length();
+      }
+      if (query.startsWith(name, start) && start + name.length() < end && query.charAt(start + name.length()) == '=') {
+        return query.substring(start + name.length() + 1, end);
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Resolve the identity (address and name) of this server, done once as resolving
+   * the name may require a reverse DNS lookup.
+   * @return address and name
+   */
+  private static String[] resolveServerIdentity() {
+    try {
+      var serverHost = InetAddress.getLocalHost();
+      return new String[] { serverHost.getHostAddress(), serverHost.getCanonicalHostName() };
+    } catch (UnknownHostException e) {
+      e.printStackTrace(); // Should not happened
+      return new String[] { "unknown", "unknown" };
+    }
+  }
+
+  /**
+   * Negotiate extensions requested by the client, the first acceptable offer of each
+   * installed extension is used. An offer of permessage-deflate is only accepted if
+   * compression is enabled, and without context takeover on the server side if
+   * that has been disabled.
+   * @param installed Extensions supported by the container
+   * @param requested Extension offers by the client, in order of preference
+   * @return negotiated extensions
+   */
+  @Override
+  public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+    var installedNames = installed.stream().map(Extension::getName).collect(Collectors.toSet());
+
+    var negotiated = new ArrayList<Extension>();
+    for (var extension : requested) {
+      var name = extension.getName();
+      if (!installedNames.contains(name) || negotiated.stream().anyMatch(e -> e.getName().equals(name))) {
+        continue; // Not supported or already negotiated (an alternative offer)
+      }
+
+      if (!DEFLATE.equals(name)) {
+        negotiated.add(extension);
+      } else if (DEFLATE_ENABLED) {
+        negotiated.add(DEFLATE_CONTEXT_TAKEOVER ? extension : withoutContextTakeover(extension));
       }
     }
+
+    log.debug(String.format("Negotiated extensions: %s", negotiated.stream().map(Extension::getName).collect(Collectors.toList())));
+    return negotiated;
   }
 
   /**
-   * Parses query any existing query parameters in the URL path into an easier to retrieve data structure.
-   * 
-   * Following example will build a hash map with key parameter1 and parameter two with value 1 and two:
-   * https://www.my-site.com/path/action?parameter2=1&parameter2=2
-   * 
-   * @param query Query parameter
-   * @return parsed query parameters
+   * Negotiate the subprotocol selecting the encoding of messages, the first one requested
+   * by the client that is supported is used. No subprotocol (an empty string) means JSON.
+   * @param supported Subprotocols supported by the endpoint
+   * @param requested Subprotocols requested by the client, in order of preference
+   * @return negotiated subprotocol or an empty string if none
    */
-  public static Map<String, List<String>> parseQuery(String query) {
-    if (query == null || query.isEmpty()) {
-        return Collections.emptyMap(); // No query parameters exists
+  @Override
+  public String getNegotiatedSubprotocol(List<String> supported, List<String> requested) {
+    for (var subprotocol : requested) {
+      if (supported.contains(subprotocol) && (SMILE_ENABLED || !WsCodec.SMILE.getSubprotocol().equals(subprotocol))) {
+        return subprotocol;
+      }
     }
+    return "";
+  }
 
-    // Split on query parameter delimiter "&"
-    return Arrays.stream(query.split("&"))
-            .map(WsConfiguration::splitQueryParameter)
-            .collect(Collectors.groupingBy(SimpleImmutableEntry::getKey, LinkedHashMap::new,
-                     Collectors.mapping(Map.Entry::getValue, Collectors.toList())));
+  /**
+   * Add server_no_context_takeover to a permessage-deflate offer, the server then
+   * resets its compression context after each message.
+   * @param extension Offer
+   * @return offer without server context takeover
+   */
+  private static Extension withoutContextTakeover(Extension extension) {
+    var parameters = new ArrayList<>(extension.getParameters());
+    if (parameters.stream().noneMatch(p -> p.getName().equals("server_no_context_takeover"))) {
+      parameters.add(new Parameter("server_no_context_takeover", null));
+    }
+    return new NegotiatedExtension(extension.getName(), parameters);
   }
 
   /**
-   * Splits a string that contains a key, value and a delimiter separating them both into
-   * the represented values.
-   * @param str key and value with delimiter
-   * @return key and value.
+   * A negotiated extension with its parameters.
    */
-  public static SimpleImmutableEntry<String, String> splitQueryParameter(String str) {
-      final int idx = str.indexOf("="); // Delimiter
-      final String key = idx > 0 ? str.substring(0, idx) : str; // Key name
-      final String value = idx > 0 && str.length() > idx + 1 ? str.substring(idx + 1) : null; // Value
-      return new SimpleImmutableEntry<>(key, value);
+  private static class NegotiatedExtension implements Extension {
+    private final String name;
+    private final List<Extension.Parameter> parameters;
+
+    NegotiatedExtension(String name, List<Extension.Parameter> parameters) {
+      this.name = name;
+      this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public List<Extension.Parameter> getParameters() {
+      return parameters;
+    }
+  }
+
+  /**
+   * A parameter of a negotiated extension.
+   */
+  private static class Parameter implements Extension.Parameter {
+    private final String name;
+    private final String value;
+
+    Parameter(String name, String value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String getValue() {
+      return value;
+    }
   }
 
   /**
@@ -0,0 +1,140 @@
+package websocket.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.Json;
+import datastructures.WsActionResponse;
+
+/**
+ * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
+ *
+ * A pre-encoded websocket frame. A response is serialized once into compact
+ * JSON and the very same frame is then shared between all connections it is
+ * broadcasted to, so the cost of a broadcast does not grow with its fan-out.
+ *
+ * Connections using the binary codec (see {@link WsCodec}) share a Smile encoding
+ * of the frame, which is only encoded the first time it is needed. The response must
+ * therefore not be changed once it has been encoded into a frame.
+ *
+ * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
+ */
+public class WsFrame {
+  private final byte[] data;
+  private final Object source; // Response, or responses of a joined frame
+  private final boolean sequenced;
+  private volatile String text;
+  private volatile byte[] smile;
+
+  /**
+   * Constructor.
+   * @param data Encoded (UTF-8 JSON) frame data
+   * @param source Response or responses encoded
+   * @param sequenced Whether all responses has a sequence number
+   */
+  private WsFrame(byte[] data, Object source, boolean sequenced) {
+    this.data = data;
+    this.source = source;
+    this.sequenced = sequenced;
+  }
+
+  /**
+   * Encode a response action into a frame.
+   * @param response Response to be encoded
+   * @return encoded frame
+   */
+  public static WsFrame of(WsActionResponse response) throws IOException {
+    return new WsFrame(Json.encode(response), response, response.seq != null);
+  }
+
+  /**
+   * Join frames into one frame containing an array of their responses, the frames
+   * are already encoded so they are only copied after each other.
+   * @param frames Frames to be joined
+   * @return joined frame
+   */
+  public static WsFrame join(List<WsFrame> frames) {
+    var size = frames.size() + 1; // Brackets and separators
+    var sources = new ArrayList<Object>();
+    var sequenced = true;
+    for (var frame : frames) {
+      size += frame.data.length;
+      sources.add(frame.source);
+      sequenced &= frame.sequenced;
+    }
+
+    var data = new byte[size];
+    var position = 0;
+    data[position++] = '[';
+    for (var frame : frames) {
+      if (position > 1) {
+        data[position++] = ',';
+      }
+      System.arraycopy(frame.data, 0, data, position, frame.data.length);
+      position += frame.data.length;
+    }
+    data[position] = ']';
+    return new WsFrame(data, sources, sequenced);
+  }
+
+  /**
+   * Get the frame as a read only buffer, each call returns a new buffer
+   * (with its own position) over the same shared data.
+   * @return frame data
+   */
+  public ByteBuffer getBuffer() {
+    return ByteBuffer.wrap(data).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the frame encoded by a codec as a read only buffer, each call returns
+   * a new buffer (with its own position) over the same shared data.
+   * @param codec Codec of the connection
+   * @return frame data
+   */
+  public ByteBuffer getBuffer(WsCodec codec) throws IOException {
+    if (codec != WsCodec.SMILE) {
+      return getBuffer();
+    }
+
+    var value = smile;
+    if (value == null) { // Benign race, worst case it is encoded twice
+      value = codec.encode(source);
+      smile = value;
+    }
+    return ByteBuffer.wrap(value).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get the frame as text, decoded once and then shared.
+   * @return frame text
+   */
+  public String getText() {
+    var value = text;
+    if (value == null) { // Benign race, worst case it is decoded twice
+      value = new String(data, StandardCharsets.UTF_8);
+      text = value;
+    }
+    return value;
+  }
+
+  /**
+   * Whether the frame only contains responses with a sequence number (of a channel),
+   * which a client may replay if they were never received.
+   * @return if sequenced
+   */
+  public boolean isSequenced() {
+    return sequenced;
+  }
+
+  /**
+   * Get size of the encoded frame.
+   * @return size in bytes
+   */
+  public int size() {
+    return data.length;
+  }
+}
@@ -2,11 +2,7 @@ package websocket.core;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
@@ -42,7 +38,14 @@ public abstract class WsServerBase {
 
   // Id of session to Connection content
   protected static final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
-  protected static final HashMap<String, ScheduledExecutorService> pingExecutorServices = new HashMap<>();
+
+  // Ping-pong (keep-alive) for all sessions, shared by all connections
+  private static final long HEARTBEAT_INTERVAL = Long.getLong("WS_HEARTBEAT_INTERVAL", 30);
+  private static final long IDLE_TIMEOUT = Long.getLong("WS_IDLE_TIMEOUT", 90);
+  private static final int HEARTBEAT_THREADS = Integer.getInteger("WS_HEARTBEAT_THREADS", 2);
+
+  protected final HeartbeatScheduler heartbeats =
+    new HeartbeatScheduler(HEARTBEAT_INTERVAL, IDLE_TIMEOUT, HEARTBEAT_THREADS, this::onPingMessage);
 
   /**
    * When a connection has been established (after the handshake).
@@ -50,18 +53,20 @@ public abstract class WsServerBase {
    */
   @OnOpen
   public final void internalOpen(Session session) {
-    try (WsRequestDataContext context = WsRequestDataContext.getCurrentInstance()) {
-      log.info(String.format("Claims: %s", context.getProperties().get("claims")));
-      log.info(String.format("Remote host: %s", context.getProperties().get("remoteHost")));
-      log.info(String.format("Server host: %s", context.getProperties().get("serverHost")));
-
-      var connection = new Connection(session, context);
+    try {
+      var properties = session.getUserProperties(); // Set during the handshake
+      if (properties.get("claims") == null) {
+        throw new IllegalAccessException("Missing or invalid authorization");
+      }
+      log.info(String.format("Claims: %s", properties.get("claims")));
+      log.info(String.format("Remote host: %s", properties.get("remoteHost")));
+      log.info(String.format("Server host: %s", properties.get("serverHost")));
+
+      var connection = new Connection(session);
       WsServerBase.connections.put(session.getId(), connection);
 
       // Start ping-pong (keep-alive) to connection
-      var pingExecutorService = Executors.newScheduledThreadPool(1);
-      pingExecutorService.scheduleAtFixedRate(() -> onPingMessage(session), 30, 30, TimeUnit.SECONDS);
-      pingExecutorServices.put(session.getId(), pingExecutorService);
+      heartbeats.start(session);
 
       onOpen(connection);
     } catch (Exception e) {
@@ -82,8 +87,7 @@ public abstract class WsServerBase {
     }
 
     // Stop ping-pong (keep-alive) to connection
-    var pingExecutorService = pingExecutorServices.remove(session.getId());
-    pingExecutorService.shutdownNow();
+    heartbeats.stop(session);
 
     return connections.remove(session.getId());
   } 
@@ -138,6 +142,7 @@ public abstract class WsServerBase {
   @OnMessage
   public void onPongMessage(Session session, PongMessage message) {
     log.info(String.format("Pong message received from session: %s", session.getId()));
+    heartbeats.touch(session);
   }
 
   /**
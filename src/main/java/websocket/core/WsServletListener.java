@@ -1,5 +1,8 @@
 package websocket.core;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.servlet.ServletRequestEvent;
 import javax.servlet.ServletRequestListener;
 import javax.servlet.annotation.WebListener;
@@ -11,12 +14,16 @@ import org.apache.logging.log4j.Logger;
 /**
  * IP1 (IB906C), VT 2020 Internet Programming, Stationary Units.
  *
- * Use a filter to retrieve some details about the request before
+ * Use a listener to retrieve some details about the request before
  * the websocket hand shake as these details are later not available
  * in the websocket context. Details collected are host remote host name,
  * remote adress and remote port, these are used for loggings.
  *
- * References:
+ * Only websocket upgrade requests are captured (no HTTP session is created for
+ * them, nor for any other request). The details are held by the thread serving
+ * the request, which is the same thread doing the handshake, and are released
+ * when the request is done. The handshake hands them on to the websocket session
+ * as user properties (see {@link WsConfiguration}).
  *
  * @author <a href="mailto:pebo6883@student.su.se">Peter Borgstedt</a>
  */
@@ -24,25 +31,44 @@ import org.apache.logging.log4j.Logger;
 public class WsServletListener implements ServletRequestListener {
   private static final Logger log = LogManager.getLogger(WsServletListener.class);
 
+  private static final ThreadLocal<Map<String, Object>> CURRENT = new ThreadLocal<>();
+
   @Override
   public void requestInitialized(ServletRequestEvent event) {
     var request = (HttpServletRequest)event.getServletRequest();
+    if (!"websocket".equalsIgnoreCase(request.getHeader("Upgrade"))) {
+      return; // Not a websocket handshake
+    }
 
     // Set some extra attributes that will be used later and is only available during the request
-    request.getSession().setAttribute("remoteHost", request.getRemoteHost());
-    request.getSession().setAttribute("remoteAddr", request.getRemoteAddr());
-    request.getSession().setAttribute("remotePort", request.getRemotePort());
+    var details = new HashMap<String, Object>(8);
+    details.put("remoteHost", request.getRemoteHost());
+    details.put("remoteAddr", request.getRemoteAddr());
+    details.put("remotePort", request.getRemotePort());
 
     var serverPort = request.getServerPort();
     if ((serverPort == 80) || (serverPort == 443)) {
       // No need to add the server port for standard HTTP and HTTPS ports, the scheme will help determine it.
-      var url = String.format("%s://%s", request.getScheme(), request.getServerName());
-      log.info(String.format("Server host: %s", url));
-      request.getSession().setAttribute("serverHost", url);
+      details.put("serverHost", String.format("%s://%s", request.getScheme(), request.getServerName()));
     } else {
-      var url = String.format("%s://%s:%s", request.getScheme(), request.getServerName(), serverPort);
-      log.info(String.format("Server host: %s", url));
-      request.getSession().setAttribute("serverHost", url);
+      details.put("serverHost", String.format("%s://%s:%s", request.getScheme(), request.getServerName(), serverPort));
     }
+    log.debug(String.format("Server host: %s", details.get("serverHost")));
+
+    CURRENT.set(details);
+  }
+
+  @Override
+  public void requestDestroyed(ServletRequestEvent event) {
+    CURRENT.remove();
+  }
+
+  /**
+   * Get details of the websocket upgrade request being served by the current thread.
+   * @return details or an empty map if none
+   */
+  public static Map<String, Object> getCurrentRequest() {
+    var details = CURRENT.get();
+    return details == null ? Map.of() : details;
   }
-}
\ No newline at end of file
+}